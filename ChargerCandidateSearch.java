@@ -0,0 +1,143 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.Arrays;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * One-to-many charger search: a single Dijkstra tree, bounded by a maximum travel time, grown from a link (forward,
+ * i.e. driving away from the link, or backward, i.e. driving towards the link). Every public charger link reached is
+ * scored with the travel time between the link and the charger link, and the cheapest chargers are kept. The search
+ * stops as soon as no cheaper charger can be found.
+ * <p>
+ * Travel times are taken at the given time (the departure time if searching forward, the arrival time if backward);
+ * the tree only ranks the candidates, the route to the selected charger is still computed by the time-dependent
+ * router.
+ * <p>
+ * The node-indexed search arrays are allocated on the first search of a thread and shared by all searches on that
+ * thread, so routing modules that never search do not allocate them and several modes on one thread share them.
+ */
+public final class ChargerCandidateSearch {
+
+	private static final ThreadLocal<SearchState> SEARCH_STATES = new ThreadLocal<>();
+
+	// search arrays of one thread, indexed by node id index
+	private static final class SearchState {
+		private final IndexedMinHeap heap;
+		private final Node[] nodes;
+		private final double[] costs;
+		private final int[] visitedStamps;
+		private int stamp;
+
+		private SearchState(int nodeCount) {
+			heap = new IndexedMinHeap(nodeCount);
+			nodes = new Node[nodeCount];
+			costs = new double[nodeCount];
+			visitedStamps = new int[nodeCount];
+		}
+	}
+
+	private final TravelTime travelTime;
+	private final ChargerSpatialIndex chargerIndex;
+	private final double maxTravelTime;
+
+	public ChargerCandidateSearch(TravelTime travelTime, ChargerSpatialIndex chargerIndex, double maxTravelTime) {
+		this.travelTime = travelTime;
+		this.chargerIndex = chargerIndex;
+		this.maxTravelTime = maxTravelTime;
+	}
+
+	private static SearchState getSearchState() {
+		int nodeCount = Id.getNumberOfIds(Node.class);
+		SearchState state = SEARCH_STATES.get();
+		if (state == null || state.nodes.length < nodeCount) {
+			state = new SearchState(nodeCount);
+			SEARCH_STATES.set(state);
+		}
+		return state;
+	}
+
+	/**
+	 * Fills the buffer with the public chargers of the given types (see
+	 * {@link ChargerSpatialIndex#getChargerTypeMask}) that are cheapest to reach from (or, if backward, to reach the
+	 * given link from), ordered by increasing travel time. The buffer stays empty if no charger is reachable within the
+	 * maximum travel time.
+	 */
+	public void findCheapestChargers(Link link, double time, boolean backward, long chargerTypeMask,
+			ChargerSpatialIndex.Neighbours neighbours) {
+		neighbours.reset();
+		SearchState state = getSearchState();
+		IndexedMinHeap heap = state.heap;
+		heap.clear();
+		if (++state.stamp == Integer.MAX_VALUE) {
+			Arrays.fill(state.visitedStamps, 0);
+			state.stamp = 1;
+		}
+
+		offerChargers(link, 0, chargerTypeMask, neighbours);
+		reach(state, backward ? link.getFromNode() : link.getToNode(), 0);
+
+		while (!heap.isEmpty()) {
+			if (heap.peekKey() >= neighbours.getWorstScore()) {
+				break;// no cheaper charger left
+			}
+			int nodeIndex = heap.poll();
+			Node node = state.nodes[nodeIndex];
+			double cost = state.costs[nodeIndex];
+			for (Link l : backward ? node.getInLinks().values() : node.getOutLinks().values()) {
+				double newCost = cost + travelTime.getLinkTravelTime(l, time, null, null);
+				if (newCost > maxTravelTime) {
+					continue;
+				}
+				offerChargers(l, newCost, chargerTypeMask, neighbours);
+				reach(state, backward ? l.getFromNode() : l.getToNode(), newCost);
+			}
+		}
+	}
+
+	private void offerChargers(Link link, double cost, long chargerTypeMask,
+			ChargerSpatialIndex.Neighbours neighbours) {
+		ChargerSpecification[] chargers = chargerIndex.getPublicChargersOnLink(link);
+		if (chargers != null) {
+			for (int i = 0; i < chargers.length; i++) {
+				if (chargerIndex.isCompatible(link, i, chargerTypeMask)) {
+					neighbours.offer(chargers[i], link, cost);
+				}
+			}
+		}
+	}
+
+	private static void reach(SearchState state, Node node, double cost) {
+		int nodeIndex = node.getId().index();
+		if (state.visitedStamps[nodeIndex] != state.stamp) {
+			state.visitedStamps[nodeIndex] = state.stamp;
+			state.nodes[nodeIndex] = node;
+			state.costs[nodeIndex] = cost;
+			state.heap.insertOrDecrease(nodeIndex, cost);
+		} else if (cost < state.costs[nodeIndex] && state.heap.insertOrDecrease(nodeIndex, cost)) {
+			state.costs[nodeIndex] = cost;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.List;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+
+/**
+ * Immutable, implicitly balanced 2-d tree over charger links. The tree is stored in flat arrays: the median of every
+ * index range [lo, hi) is the splitting point, the left half holds the smaller and the right half the larger
+ * coordinates. Distances are measured between link coords, like {@link org.matsim.contrib.util.StraightLineKnnFinder}
+ * does.
+ */
+final class ChargerKdTree {
+
+	private final ChargerSpecification[] chargers;
+	private final Link[] links;
+	private final double[] xs;
+	private final double[] ys;
+
+	ChargerKdTree(List<ChargerSpecification> chargers, List<Link> links) {
+		int size = chargers.size();
+		this.chargers = chargers.toArray(new ChargerSpecification[size]);
+		this.links = links.toArray(new Link[size]);
+		this.xs = new double[size];
+		this.ys = new double[size];
+		for (int i = 0; i < size; i++) {
+			xs[i] = this.links[i].getCoord().getX();
+			ys[i] = this.links[i].getCoord().getY();
+		}
+		build(0, size, true);
+	}
+
+	int size() {
+		return chargers.length;
+	}
+
+	/**
+	 * Offers the chargers closest to (x, y) to the given neighbours buffer. The buffer is not reset, so that several
+	 * trees can be queried into the same buffer.
+	 */
+	void findNearest(double x, double y, ChargerSpatialIndex.Neighbours neighbours) {
+		search(0, chargers.length, true, x, y, neighbours);
+	}
+
+	private void search(int lo, int hi, boolean splitX, double x, double y, ChargerSpatialIndex.Neighbours neighbours) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		double dx = x - xs[mid];
+		double dy = y - ys[mid];
+		neighbours.offer(chargers[mid], links[mid], dx * dx + dy * dy);
+
+		double diff = splitX ? dx : dy;
+		if (diff < 0) {
+			search(lo, mid, !splitX, x, y, neighbours);
+			if (diff * diff < neighbours.getWorstScore()) {
+				search(mid + 1, hi, !splitX, x, y, neighbours);
+			}
+		} else {
+			search(mid + 1, hi, !splitX, x, y, neighbours);
+			if (diff * diff < neighbours.getWorstScore()) {
+				search(lo, mid, !splitX, x, y, neighbours);
+			}
+		}
+	}
+
+	private void build(int lo, int hi, boolean splitX) {
+		if (hi - lo <= 1) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, splitX ? xs : ys);
+		build(lo, mid, !splitX);
+		build(mid + 1, hi, !splitX);
+	}
+
+	// quickselect (Hoare partitioning), afterwards keys[lo..k-1] <= keys[k] <= keys[k+1..hi]
+	private void select(int lo, int hi, int k, double[] keys) {
+		while (lo < hi) {
+			double pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		ChargerSpecification charger = chargers[i];
+		chargers[i] = chargers[j];
+		chargers[j] = charger;
+		Link link = links[i];
+		links[i] = links[j];
+		links[j] = link;
+		double x = xs[i];
+		xs[i] = xs[j];
+		xs[j] = x;
+		double y = ys[i];
+		ys[i] = ys[j];
+		ys[j] = y;
+	}
+}
@@ -0,0 +1,185 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Expected occupancy of the public charger links, in time slots: how many vehicles the routing threads have sent to
+ * charge on a link during each slot. The counters are updated lock-free as charging activities are assigned, so the
+ * charger selection of later trips can take the expected queue into account. A link is treated as one station whose
+ * plugs are those of all its public chargers.
+ * <p>
+ * The ledger only knows the trips routed since the end of the last iteration (typically the replanned ones), and with
+ * several routing threads the order in which trips are counted is not deterministic. The ledger is cleared at the end
+ * of every iteration, before the next replanning.
+ */
+public final class ChargerOccupancyLedger implements IterationEndsListener {
+	private static final Logger log = Logger.getLogger(ChargerOccupancyLedger.class);
+
+	private static final Cache<ChargerSpatialIndex, ChargerOccupancyLedger> LEDGERS = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the ledger of the public chargers of the given index, creating it (and registering it for clearing) on
+	 * first access.
+	 */
+	public static ChargerOccupancyLedger getOrCreate(ChargerSpatialIndex chargerIndex, Network network, int slotSize,
+			double maxTime, ControlerListenerManager controlerListenerManager) {
+		try {
+			return LEDGERS.get(chargerIndex, () -> {
+				ChargerOccupancyLedger ledger = new ChargerOccupancyLedger(chargerIndex, network, slotSize, maxTime);
+				controlerListenerManager.addControlerListener(ledger);
+				return ledger;
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private final int slotSize;
+	private final int slotCount;// the last slot also takes all later times
+
+	private final int[] rowsByLinkIndex;// -1 if there is no public charger on the link
+	private final int[] plugCounts;
+	private final AtomicIntegerArray occupancies;// [row * slotCount + slot]
+	private final AtomicIntegerArray reservationCounts;
+	private final AtomicLongArray reservedDurations;// [s]
+
+	public ChargerOccupancyLedger(ChargerSpatialIndex chargerIndex, Network network, int slotSize, double maxTime) {
+		this.slotSize = slotSize;
+		this.slotCount = (int)(maxTime / slotSize) + 1;
+
+		rowsByLinkIndex = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(rowsByLinkIndex, -1);
+		int[] plugCounts = new int[network.getLinks().size()];
+		int rows = 0;
+		for (Link link : network.getLinks().values()) {
+			ChargerSpecification[] chargers = chargerIndex.getPublicChargersOnLink(link);
+			if (chargers != null) {
+				int plugs = 0;
+				for (ChargerSpecification charger : chargers) {
+					plugs += charger.getPlugCount();
+				}
+				rowsByLinkIndex[link.getId().index()] = rows;
+				plugCounts[rows++] = Math.max(plugs, 1);
+			}
+		}
+		this.plugCounts = Arrays.copyOf(plugCounts, rows);
+		this.occupancies = new AtomicIntegerArray(rows * slotCount);
+		this.reservationCounts = new AtomicIntegerArray(rows);
+		this.reservedDurations = new AtomicLongArray(rows);
+	}
+
+	private int getRow(Id<Link> linkId) {
+		int linkIndex = linkId.index();
+		return linkIndex < rowsByLinkIndex.length ? rowsByLinkIndex[linkIndex] : -1;
+	}
+
+	private int getSlot(double time) {
+		return time <= 0 ? 0 : Math.min((int)(time / slotSize), slotCount - 1);
+	}
+
+	/**
+	 * Counts a vehicle charging on the link from the start time for the given duration. Ignored if there is no public
+	 * charger on the link.
+	 */
+	public void reserve(Id<Link> linkId, double startTime, double duration) {
+		int row = getRow(linkId);
+		if (row < 0) {
+			return;
+		}
+		int firstSlot = getSlot(startTime);
+		int lastSlot = Math.max(getSlot(startTime + duration - 1), firstSlot);
+		for (int slot = firstSlot; slot <= lastSlot; slot++) {
+			occupancies.incrementAndGet(row * slotCount + slot);
+		}
+		reservationCounts.incrementAndGet(row);
+		reservedDurations.addAndGet(row, (long)duration);
+	}
+
+	/**
+	 * @return the number of vehicles counted on the link in the slot of the given time
+	 */
+	public int getOccupancy(Id<Link> linkId, double time) {
+		int row = getRow(linkId);
+		return row < 0 ? 0 : occupancies.get(row * slotCount + getSlot(time));
+	}
+
+	/**
+	 * Expected time [s] a vehicle arriving at the given time waits for a free plug on the link: the vehicles exceeding
+	 * the plugs of the link, each holding a plug for the mean duration of the charging activities counted on the link.
+	 */
+	public double getExpectedWaitTime(Id<Link> linkId, double arrivalTime) {
+		int row = getRow(linkId);
+		if (row < 0) {
+			return 0;
+		}
+		int queue = occupancies.get(row * slotCount + getSlot(arrivalTime)) + 1 - plugCounts[row];
+		if (queue <= 0) {
+			return 0;
+		}
+		int reservations = reservationCounts.get(row);
+		double meanDuration = reservations == 0 ? 0 : (double)reservedDurations.get(row) / reservations;
+		return queue * meanDuration / plugCounts[row];
+	}
+
+	public void clear() {
+		for (int i = 0; i < occupancies.length(); i++) {
+			occupancies.set(i, 0);
+		}
+		for (int row = 0; row < plugCounts.length; row++) {
+			reservationCounts.set(row, 0);
+			reservedDurations.set(row, 0);
+		}
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		long reservations = 0;
+		int overbookedSlots = 0;
+		for (int row = 0; row < plugCounts.length; row++) {
+			reservations += reservationCounts.get(row);
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (occupancies.get(row * slotCount + slot) > plugCounts[row]) {
+					overbookedSlots++;
+				}
+			}
+		}
+		log.info("Charger occupancy: " + reservations + " charging activities at " + plugCounts.length
+				+ " charger links, " + overbookedSlots + " overbooked link slots");
+		clear();
+	}
+}
@@ -0,0 +1,310 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.contrib.ev.fleet.ElectricVehicleSpecification;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+import org.matsim.contrib.ev.infrastructure.ChargingInfrastructureSpecification;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Spatial index over the chargers of a {@link ChargingInfrastructureSpecification}. It is built once per
+ * infrastructure specification and network (public chargers on links outside the network are left out) and shared
+ * (read-only) by all routing threads. Private (home/work) chargers are kept out of the public k-d trees, so that
+ * charger selection does not need to filter them per query; instead, they are mapped to their person.
+ * <p>
+ * The public chargers are split by charger type into one k-d tree per type. A vehicle's compatible charger types are
+ * a bit mask over the type indices (see {@link #getChargerTypeMask(ElectricVehicleSpecification)}), so a
+ * compatibility-aware query only searches the trees of the compatible types, and the chargers on a link are filtered by
+ * a single bit test.
+ */
+public final class ChargerSpatialIndex {
+	private static final Logger log = Logger.getLogger(ChargerSpatialIndex.class);
+
+	// one index per infrastructure and (mode-filtered) network, as the network decides which chargers are routable;
+	// the network is the inner key, so that the indices of an infrastructure go together with it
+	private static final Cache<ChargingInfrastructureSpecification, Cache<Network, ChargerSpatialIndex>> INDICES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the index of the given infrastructure and network, building it on first access. Concurrent callers for
+	 * the same infrastructure and network wait for a single build; other callers are not blocked.
+	 */
+	public static ChargerSpatialIndex getOrCreate(ChargingInfrastructureSpecification infrastructure, Network network) {
+		try {
+			return INDICES.get(infrastructure, () -> CacheBuilder.newBuilder().weakKeys().<Network, ChargerSpatialIndex>build())
+					.get(network, () -> new ChargerSpatialIndex(infrastructure, network));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Home and work chargers are created with the person id plus a "home"/"work" suffix and are therefore recognised by
+	 * their id length.
+	 */
+	static boolean isPrivateCharger(ChargerSpecification charger) {
+		return charger.getId().toString().length() >= 10;
+	}
+
+	private static final String HOME_SUFFIX = "home";
+	private static final String WORK_SUFFIX = "work";
+
+	/**
+	 * Mask of all charger types, i.e. without compatibility filtering.
+	 */
+	public static final long ALL_CHARGER_TYPES = -1L;
+
+	private final Map<String, Integer> chargerTypeIndices = new LinkedHashMap<>();
+	private final ChargerKdTree[] publicChargersByType;
+	private final int publicChargerCount;
+	private final ChargerSpecification[][] publicChargersByLinkIndex;
+	private final byte[][] publicChargerTypesByLinkIndex;// type indices, parallel to publicChargersByLinkIndex
+	private final Map<List<String>, Long> chargerTypeMasks = new ConcurrentHashMap<>();
+
+	private final Map<Id<Person>, ChargerSpecification> homeChargers = new HashMap<>();
+	private final Map<Id<Person>, ChargerSpecification> workChargers = new HashMap<>();
+
+	public ChargerSpatialIndex(ChargingInfrastructureSpecification infrastructure, Network network) {
+		List<List<ChargerSpecification>> chargersByType = new ArrayList<>();
+		List<List<Link>> linksByType = new ArrayList<>();
+		this.publicChargersByLinkIndex = new ChargerSpecification[Id.getNumberOfIds(Link.class)][];
+		this.publicChargerTypesByLinkIndex = new byte[publicChargersByLinkIndex.length][];
+		int publicCount = 0;
+		int unroutableCount = 0;
+		for (ChargerSpecification charger : infrastructure.getChargerSpecifications().values()) {
+			// mapped to the person whatever the id length, as the home/work charger lookup did by id
+			addPrivateCharger(charger);
+			if (isPrivateCharger(charger)) {
+				continue;
+			}
+			Link link = network.getLinks().get(charger.getLinkId());
+			if (link == null) {
+				unroutableCount++;
+				continue;
+			}
+			int typeIndex = chargerTypeIndices.computeIfAbsent(charger.getChargerType(), t -> {
+				chargersByType.add(new ArrayList<>());
+				linksByType.add(new ArrayList<>());
+				return chargersByType.size() - 1;
+			});
+			if (typeIndex >= Long.SIZE) {
+				throw new IllegalStateException("More than " + Long.SIZE + " charger types are not supported");
+			}
+			chargersByType.get(typeIndex).add(charger);
+			linksByType.get(typeIndex).add(link);
+			addToLink(charger, link, typeIndex);
+			publicCount++;
+		}
+		this.publicChargersByType = new ChargerKdTree[chargersByType.size()];
+		for (int t = 0; t < publicChargersByType.length; t++) {
+			publicChargersByType[t] = new ChargerKdTree(chargersByType.get(t), linksByType.get(t));
+		}
+		this.publicChargerCount = publicCount;
+		log.info("Charger index built: " + publicCount + " public chargers of types " + chargerTypeIndices.keySet()
+				+ ", " + homeChargers.size() + " home and " + workChargers.size() + " work chargers, "
+				+ unroutableCount + " chargers on links outside the network");
+	}
+
+	// private chargers are named after their person, with a "home"/"work" suffix (independently of isPrivateCharger)
+	private void addPrivateCharger(ChargerSpecification charger) {
+		String id = charger.getId().toString();
+		if (id.endsWith(HOME_SUFFIX)) {
+			homeChargers.put(Id.createPersonId(id.substring(0, id.length() - HOME_SUFFIX.length())), charger);
+		} else if (id.endsWith(WORK_SUFFIX)) {
+			workChargers.put(Id.createPersonId(id.substring(0, id.length() - WORK_SUFFIX.length())), charger);
+		}
+	}
+
+	private void addToLink(ChargerSpecification charger, Link link, int typeIndex) {
+		int linkIndex = link.getId().index();
+		ChargerSpecification[] chargersOnLink = publicChargersByLinkIndex[linkIndex];
+		if (chargersOnLink == null) {
+			publicChargersByLinkIndex[linkIndex] = new ChargerSpecification[] { charger };
+			publicChargerTypesByLinkIndex[linkIndex] = new byte[] { (byte)typeIndex };
+		} else {
+			int count = chargersOnLink.length;
+			chargersOnLink = Arrays.copyOf(chargersOnLink, count + 1);
+			chargersOnLink[count] = charger;
+			publicChargersByLinkIndex[linkIndex] = chargersOnLink;
+			byte[] typesOnLink = Arrays.copyOf(publicChargerTypesByLinkIndex[linkIndex], count + 1);
+			typesOnLink[count] = (byte)typeIndex;
+			publicChargerTypesByLinkIndex[linkIndex] = typesOnLink;
+		}
+	}
+
+	/**
+	 * @return the mask of the charger types the vehicle can use (bit i set for type index i); types without public
+	 * chargers are ignored
+	 */
+	public long getChargerTypeMask(ElectricVehicleSpecification ev) {
+		return chargerTypeMasks.computeIfAbsent(ev.getChargerTypes(), types -> {
+			long mask = 0;
+			for (String type : types) {
+				Integer typeIndex = chargerTypeIndices.get(type);
+				if (typeIndex != null) {
+					mask |= 1L << typeIndex;
+				}
+			}
+			return mask;
+		});
+	}
+
+	/**
+	 * Fills the buffer with the public chargers closest to the given coord, ordered by increasing distance.
+	 */
+	public void findNearestPublicChargers(Coord coord, Neighbours neighbours) {
+		findNearestPublicChargers(coord, ALL_CHARGER_TYPES, neighbours);
+	}
+
+	/**
+	 * Fills the buffer with the public chargers of the given types closest to the given coord, ordered by increasing
+	 * distance. Only the trees of these types are searched.
+	 */
+	public void findNearestPublicChargers(Coord coord, long chargerTypeMask, Neighbours neighbours) {
+		neighbours.reset();
+		for (int t = 0; t < publicChargersByType.length; t++) {
+			if ((chargerTypeMask & (1L << t)) != 0) {
+				publicChargersByType[t].findNearest(coord.getX(), coord.getY(), neighbours);
+			}
+		}
+	}
+
+	/**
+	 * @return public chargers located on the link or null if there are none
+	 */
+	@Nullable
+	ChargerSpecification[] getPublicChargersOnLink(Link link) {
+		int linkIndex = link.getId().index();
+		return linkIndex < publicChargersByLinkIndex.length ? publicChargersByLinkIndex[linkIndex] : null;
+	}
+
+	/**
+	 * @return whether the i-th charger of {@link #getPublicChargersOnLink(Link)} is of one of the given types
+	 */
+	boolean isCompatible(Link link, int i, long chargerTypeMask) {
+		return (chargerTypeMask & (1L << publicChargerTypesByLinkIndex[link.getId().index()][i])) != 0;
+	}
+
+	/**
+	 * @return the home charger of the person, or null if there is none
+	 */
+	@Nullable
+	public ChargerSpecification getHomeCharger(Id<Person> personId) {
+		return homeChargers.get(personId);
+	}
+
+	/**
+	 * @return the work charger of the person, or null if there is none
+	 */
+	@Nullable
+	public ChargerSpecification getWorkCharger(Id<Person> personId) {
+		return workChargers.get(personId);
+	}
+
+	public int getPublicChargerCount() {
+		return publicChargerCount;
+	}
+
+	/**
+	 * Reusable result buffer of a k-nearest query, ordered by increasing score (the squared straight-line distance or
+	 * the network cost). Not thread-safe, each routing module owns its own buffer.
+	 */
+	public static final class Neighbours {
+		private final ChargerSpecification[] chargers;
+		private final Link[] links;
+		private final double[] scores;
+		private int size;
+
+		public Neighbours(int k) {
+			this.chargers = new ChargerSpecification[k];
+			this.links = new Link[k];
+			this.scores = new double[k];
+		}
+
+		void reset() {
+			size = 0;
+		}
+
+		double getWorstScore() {
+			return size < chargers.length ? Double.POSITIVE_INFINITY : scores[size - 1];
+		}
+
+		void offer(ChargerSpecification charger, Link link, double score) {
+			if (score >= getWorstScore()) {
+				return;
+			}
+			int i = size < chargers.length ? size++ : size - 1;
+			while (i > 0 && scores[i - 1] > score) {
+				chargers[i] = chargers[i - 1];
+				links[i] = links[i - 1];
+				scores[i] = scores[i - 1];
+				i--;
+			}
+			chargers[i] = charger;
+			links[i] = link;
+			scores[i] = score;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public ChargerSpecification getCharger(int i) {
+			checkIndex(i);
+			return chargers[i];
+		}
+
+		public Link getLink(int i) {
+			checkIndex(i);
+			return links[i];
+		}
+
+		public double getScore(int i) {
+			checkIndex(i);
+			return scores[i];
+		}
+
+		private void checkIndex(int i) {
+			if (i >= size) {
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+			}
+		}
+	}
+}
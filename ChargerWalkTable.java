@@ -0,0 +1,410 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+import org.matsim.contrib.ev.infrastructure.ChargingInfrastructureSpecification;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.router.LinkWrapperFacility;
+import org.matsim.core.router.RoutingModule;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Provider;
+
+/**
+ * Walk and fast walk times/distances from the links of the public chargers to the activity facilities within a
+ * radius, so that the destination charging branches do not need to call the walk routers per trip. Walk legs do not
+ * depend on time or congestion, so the table is built once and can be stored to and loaded from a binary file. The
+ * rows are built in parallel, each worker thread with its own walk routers (routing modules are not thread-safe).
+ * Walk legs are routed without a person, so person-specific walk routing is not reflected in the table.
+ * <p>
+ * The table is stored in compressed-row form: one row per charger link, with the facility id indices sorted within a
+ * row and the times/distances as floats.
+ */
+public final class ChargerWalkTable {
+	private static final Logger log = Logger.getLogger(ChargerWalkTable.class);
+
+	private static final int FILE_MAGIC = 0x45565754;// "EVWT"
+	private static final int FILE_VERSION = 2;
+
+	// one table per infrastructure and (mode-filtered) network, as the network decides which charger links are in it
+	private static final Cache<ChargingInfrastructureSpecification, Cache<Network, ChargerWalkTable>> TABLES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the table of the given infrastructure and network, loading it from the file (if given and existing with
+	 * the same fingerprint, see {@link #calcFingerprint}) or building it (and writing it to the file, if given) on
+	 * first access.
+	 */
+	public static ChargerWalkTable getOrCreate(ChargingInfrastructureSpecification infrastructure, Network network,
+			ActivityFacilities facilities, Provider<RoutingModule> walkRouterProvider, String walkMode,
+			Provider<RoutingModule> fastWalkRouterProvider, String fastWalkMode, double radius, @Nullable String file) {
+		try {
+			return TABLES.get(infrastructure, () -> CacheBuilder.newBuilder().weakKeys().<Network, ChargerWalkTable>build())
+					.get(network, () -> loadOrBuild(infrastructure, network, facilities, walkRouterProvider, walkMode,
+							fastWalkRouterProvider, fastWalkMode, radius, file));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static ChargerWalkTable loadOrBuild(ChargingInfrastructureSpecification infrastructure, Network network,
+			ActivityFacilities facilities, Provider<RoutingModule> walkRouterProvider, String walkMode,
+			Provider<RoutingModule> fastWalkRouterProvider, String fastWalkMode, double radius, @Nullable String file) {
+		List<Link> chargerLinks = getPublicChargerLinks(infrastructure, network);
+		long fingerprint = calcFingerprint(chargerLinks, facilities.getFacilities().values(), walkMode, fastWalkMode,
+				radius);
+		if (file != null && new File(file).exists()) {
+			ChargerWalkTable table = read(new File(file), fingerprint, walkMode, fastWalkMode);
+			if (table != null) {
+				return table;
+			}
+			log.warn("Charger walk table in " + file
+					+ " has been built for other chargers, facilities, walk modes or radius, rebuilding");
+		}
+		ChargerWalkTable table = build(chargerLinks, facilities, walkRouterProvider, walkMode, fastWalkRouterProvider,
+				fastWalkMode, radius);
+		if (file != null) {
+			table.write(new File(file), fingerprint);
+		}
+		return table;
+	}
+
+	private final String walkMode;
+	private final String fastWalkMode;
+	private final double radius;
+
+	private final int[] rowsByLinkIndex;// -1 if no row
+	private final Id<Link>[] rowLinkIds;
+	private final int[] rowOffsets;
+	private final int[] facilityIndices;
+	private final float[] walkTimes;
+	private final float[] walkDistances;
+	private final float[] fastWalkTimes;
+	private final float[] fastWalkDistances;
+
+	private ChargerWalkTable(String walkMode, String fastWalkMode, double radius, Id<Link>[] rowLinkIds,
+			int[] rowOffsets, int[] facilityIndices, float[] walkTimes, float[] walkDistances, float[] fastWalkTimes,
+			float[] fastWalkDistances) {
+		this.walkMode = walkMode;
+		this.fastWalkMode = fastWalkMode;
+		this.radius = radius;
+		this.rowLinkIds = rowLinkIds;
+		this.rowOffsets = rowOffsets;
+		this.facilityIndices = facilityIndices;
+		this.walkTimes = walkTimes;
+		this.walkDistances = walkDistances;
+		this.fastWalkTimes = fastWalkTimes;
+		this.fastWalkDistances = fastWalkDistances;
+		this.rowsByLinkIndex = new int[Id.getNumberOfIds(Link.class)];
+		Arrays.fill(rowsByLinkIndex, -1);
+		for (int row = 0; row < rowLinkIds.length; row++) {
+			rowsByLinkIndex[rowLinkIds[row].index()] = row;
+		}
+	}
+
+	// walk data of one charger link, computed in parallel
+	private static final class Row {
+		private final int[] facilityIndices;
+		private final float[] walkTimes;
+		private final float[] walkDistances;
+		private final float[] fastWalkTimes;
+		private final float[] fastWalkDistances;
+
+		private Row(int size) {
+			facilityIndices = new int[size];
+			walkTimes = new float[size];
+			walkDistances = new float[size];
+			fastWalkTimes = new float[size];
+			fastWalkDistances = new float[size];
+		}
+	}
+
+	private static List<Link> getPublicChargerLinks(ChargingInfrastructureSpecification infrastructure,
+			Network network) {
+		return infrastructure.getChargerSpecifications()
+				.values()
+				.stream()
+				.filter(c -> !ChargerSpatialIndex.isPrivateCharger(c))
+				.map(ChargerSpecification::getLinkId)
+				.distinct()
+				.map(network.getLinks()::get)
+				.filter(l -> l != null)
+				.sorted((l1, l2) -> Integer.compare(l1.getId().index(), l2.getId().index()))
+				.collect(Collectors.toList());
+	}
+
+	// changes whenever a public charger link or a facility is added, removed or moved, or the walk modes or radius change
+	static long calcFingerprint(List<Link> chargerLinks, Collection<? extends ActivityFacility> facilities,
+			String walkMode, String fastWalkMode, double radius) {
+		long h = Double.hashCode(radius);
+		h = 31 * h + walkMode.hashCode();
+		h = 31 * h + fastWalkMode.hashCode();
+		for (Link link : chargerLinks) {
+			long linkHash = link.getId().toString().hashCode();
+			linkHash = 31 * linkHash + Double.hashCode(link.getCoord().getX());
+			linkHash = 31 * linkHash + Double.hashCode(link.getCoord().getY());
+			h += linkHash * 0x9E3779B97F4A7C15L;// order independent
+		}
+		for (ActivityFacility facility : facilities) {
+			long facilityHash = facility.getId().toString().hashCode();
+			facilityHash = 31 * facilityHash + Objects.hashCode(facility.getLinkId());
+			if (facility.getCoord() != null) {
+				facilityHash = 31 * facilityHash + Double.hashCode(facility.getCoord().getX());
+				facilityHash = 31 * facilityHash + Double.hashCode(facility.getCoord().getY());
+			}
+			h += facilityHash * 0xC2B2AE3D27D4EB4FL;// order independent
+		}
+		return h;
+	}
+
+	@SuppressWarnings("unchecked")
+	static ChargerWalkTable build(List<Link> chargerLinks, ActivityFacilities facilities,
+			Provider<RoutingModule> walkRouterProvider, String walkMode, Provider<RoutingModule> fastWalkRouterProvider,
+			String fastWalkMode, double radius) {
+		// one pair of routers per worker thread
+		ThreadLocal<RoutingModule> walkRouters = ThreadLocal.withInitial(walkRouterProvider::get);
+		ThreadLocal<RoutingModule> fastWalkRouters = ThreadLocal.withInitial(fastWalkRouterProvider::get);
+		QuadTree<ActivityFacility> facilityTree = createFacilityTree(facilities.getFacilities().values());
+		Row[] rows = chargerLinks.parallelStream()
+				.map(link -> buildRow(link, facilityTree, walkRouters.get(), fastWalkRouters.get(), radius))
+				.toArray(Row[]::new);
+
+		Id<Link>[] rowLinkIds = new Id[rows.length];
+		int[] rowOffsets = new int[rows.length + 1];
+		for (int row = 0; row < rows.length; row++) {
+			rowLinkIds[row] = chargerLinks.get(row).getId();
+			rowOffsets[row + 1] = rowOffsets[row] + rows[row].facilityIndices.length;
+		}
+		int size = rowOffsets[rows.length];
+		int[] facilityIndices = new int[size];
+		float[] walkTimes = new float[size];
+		float[] walkDistances = new float[size];
+		float[] fastWalkTimes = new float[size];
+		float[] fastWalkDistances = new float[size];
+		for (int row = 0; row < rows.length; row++) {
+			Row r = rows[row];
+			int offset = rowOffsets[row];
+			int length = r.facilityIndices.length;
+			System.arraycopy(r.facilityIndices, 0, facilityIndices, offset, length);
+			System.arraycopy(r.walkTimes, 0, walkTimes, offset, length);
+			System.arraycopy(r.walkDistances, 0, walkDistances, offset, length);
+			System.arraycopy(r.fastWalkTimes, 0, fastWalkTimes, offset, length);
+			System.arraycopy(r.fastWalkDistances, 0, fastWalkDistances, offset, length);
+		}
+		log.info("Charger walk table built: " + rows.length + " charger links, " + size + " facility entries, radius "
+				+ radius + " m");
+		return new ChargerWalkTable(walkMode, fastWalkMode, radius, rowLinkIds, rowOffsets, facilityIndices, walkTimes,
+				walkDistances, fastWalkTimes, fastWalkDistances);
+	}
+
+	private static QuadTree<ActivityFacility> createFacilityTree(Collection<? extends ActivityFacility> facilities) {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (ActivityFacility facility : facilities) {
+			if (facility.getCoord() != null) {
+				minX = Math.min(minX, facility.getCoord().getX());
+				minY = Math.min(minY, facility.getCoord().getY());
+				maxX = Math.max(maxX, facility.getCoord().getX());
+				maxY = Math.max(maxY, facility.getCoord().getY());
+			}
+		}
+		if (minX > maxX) {
+			return new QuadTree<>(0, 0, 0, 0);
+		}
+		QuadTree<ActivityFacility> tree = new QuadTree<>(minX, minY, maxX, maxY);
+		for (ActivityFacility facility : facilities) {
+			if (facility.getCoord() != null) {
+				tree.put(facility.getCoord().getX(), facility.getCoord().getY(), facility);
+			}
+		}
+		return tree;
+	}
+
+	private static Row buildRow(Link chargerLink, QuadTree<ActivityFacility> facilityTree, RoutingModule walkRouter,
+			RoutingModule fastWalkRouter, double radius) {
+		ActivityFacility[] facilities = facilityTree.getDisk(chargerLink.getCoord().getX(),
+				chargerLink.getCoord().getY(), radius).toArray(new ActivityFacility[0]);
+		Arrays.sort(facilities, (f1, f2) -> Integer.compare(f1.getId().index(), f2.getId().index()));
+
+		LinkWrapperFacility chargerFacility = new LinkWrapperFacility(chargerLink);
+		Row row = new Row(facilities.length);
+		for (int i = 0; i < facilities.length; i++) {
+			row.facilityIndices[i] = facilities[i].getId().index();
+			Leg walkLeg = getLeg(walkRouter.calcRoute(chargerFacility, facilities[i], 0, null));
+			row.walkTimes[i] = (float)walkLeg.getTravelTime();
+			row.walkDistances[i] = (float)walkLeg.getRoute().getDistance();
+			Leg fastWalkLeg = getLeg(fastWalkRouter.calcRoute(chargerFacility, facilities[i], 0, null));
+			row.fastWalkTimes[i] = (float)fastWalkLeg.getTravelTime();
+			row.fastWalkDistances[i] = (float)fastWalkLeg.getRoute().getDistance();
+		}
+		return row;
+	}
+
+	private static Leg getLeg(List<? extends PlanElement> route) {
+		return (Leg)route.get(0);
+	}
+
+	/**
+	 * Creates the walk (or fast walk) leg from the charger link to the facility, like the walk routers would.
+	 *
+	 * @return the leg, or null if the pair is not in the table
+	 */
+	@Nullable
+	public Leg createWalkLeg(boolean fast, Link chargerLink, ActivityFacility facility, double departureTime) {
+		int linkIndex = chargerLink.getId().index();
+		int row = linkIndex < rowsByLinkIndex.length ? rowsByLinkIndex[linkIndex] : -1;
+		if (row < 0) {
+			return null;
+		}
+		int entry = Arrays.binarySearch(facilityIndices, rowOffsets[row], rowOffsets[row + 1],
+				facility.getId().index());
+		if (entry < 0) {
+			return null;
+		}
+		double travelTime = fast ? fastWalkTimes[entry] : walkTimes[entry];
+		Route route = RouteUtils.createGenericRouteImpl(chargerLink.getId(), facility.getLinkId());
+		route.setTravelTime(travelTime);
+		route.setDistance(fast ? fastWalkDistances[entry] : walkDistances[entry]);
+		Leg leg = PopulationUtils.createLeg(fast ? fastWalkMode : walkMode);
+		leg.setRoute(route);
+		leg.setDepartureTime(departureTime);
+		leg.setTravelTime(travelTime);
+		return leg;
+	}
+
+	void write(File file, long fingerprint) {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(fingerprint);
+			out.writeDouble(radius);
+			out.writeInt(rowLinkIds.length);
+			for (int row = 0; row < rowLinkIds.length; row++) {
+				out.writeUTF(rowLinkIds[row].toString());
+				out.writeInt(rowOffsets[row + 1] - rowOffsets[row]);
+				for (int entry = rowOffsets[row]; entry < rowOffsets[row + 1]; entry++) {
+					out.writeUTF(Id.get(facilityIndices[entry], ActivityFacility.class).toString());
+					out.writeFloat(walkTimes[entry]);
+					out.writeFloat(walkDistances[entry]);
+					out.writeFloat(fastWalkTimes[entry]);
+					out.writeFloat(fastWalkDistances[entry]);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		log.info("Charger walk table written to " + file);
+	}
+
+	/**
+	 * @return the table or null if the file is not a walk table of the current version or has another fingerprint
+	 */
+	@SuppressWarnings("unchecked")
+	static ChargerWalkTable read(File file, long fingerprint, String walkMode, String fastWalkMode) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				log.warn(file + " is not a charger walk table of version " + FILE_VERSION);
+				return null;
+			}
+			if (in.readLong() != fingerprint) {
+				return null;
+			}
+			double radius = in.readDouble();
+			int rowCount = in.readInt();
+			Id<Link>[] rowLinkIds = new Id[rowCount];
+			Row[] rows = new Row[rowCount];
+			int[] rowOffsets = new int[rowCount + 1];
+			for (int row = 0; row < rowCount; row++) {
+				rowLinkIds[row] = Id.createLinkId(in.readUTF());
+				Row r = rows[row] = new Row(in.readInt());
+				for (int i = 0; i < r.facilityIndices.length; i++) {
+					r.facilityIndices[i] = Id.create(in.readUTF(), ActivityFacility.class).index();
+					r.walkTimes[i] = in.readFloat();
+					r.walkDistances[i] = in.readFloat();
+					r.fastWalkTimes[i] = in.readFloat();
+					r.fastWalkDistances[i] = in.readFloat();
+				}
+				rowOffsets[row + 1] = rowOffsets[row] + r.facilityIndices.length;
+			}
+
+			// id indices depend on the order in which ids are created, so the rows are sorted again
+			int size = rowOffsets[rowCount];
+			int[] facilityIndices = new int[size];
+			float[] walkTimes = new float[size];
+			float[] walkDistances = new float[size];
+			float[] fastWalkTimes = new float[size];
+			float[] fastWalkDistances = new float[size];
+			for (int row = 0; row < rowCount; row++) {
+				Row r = rows[row];
+				Integer[] order = new Integer[r.facilityIndices.length];
+				for (int i = 0; i < order.length; i++) {
+					order[i] = i;
+				}
+				Arrays.sort(order, (i1, i2) -> Integer.compare(r.facilityIndices[i1], r.facilityIndices[i2]));
+				for (int i = 0; i < order.length; i++) {
+					int entry = rowOffsets[row] + i;
+					facilityIndices[entry] = r.facilityIndices[order[i]];
+					walkTimes[entry] = r.walkTimes[order[i]];
+					walkDistances[entry] = r.walkDistances[order[i]];
+					fastWalkTimes[entry] = r.fastWalkTimes[order[i]];
+					fastWalkDistances[entry] = r.fastWalkDistances[order[i]];
+				}
+			}
+			log.info("Charger walk table read from " + file + ": " + rowCount + " charger links, " + size
+					+ " facility entries");
+			return new ChargerWalkTable(walkMode, fastWalkMode, radius, rowLinkIds, rowOffsets, facilityIndices,
+					walkTimes, walkDistances, fastWalkTimes, fastWalkDistances);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.core.utils.gis.ShapeFileReader;
+import org.matsim.facilities.ActivityFacilities;
+import org.matsim.facilities.ActivityFacility;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Zones in which EV users charge at public chargers near their destination. The zones are one or more polygons
+ * (by default the built-in city centre polygon, otherwise read from a shape file) compiled once into a grid: every cell
+ * is either outside, inside or on the boundary of the zones, and only coords in boundary cells are tested against the
+ * (few) polygons crossing the cell. The zone flag is furthermore precomputed for every link and activity facility, so
+ * the per-trip test is a single array read in most cases.
+ */
+public final class ChargingZones {
+	private static final Logger log = Logger.getLogger(ChargingZones.class);
+
+	private static final Cache<Network, ChargingZones> ZONES = CacheBuilder.newBuilder().weakKeys().build();
+
+	/**
+	 * Returns the zones of the given network, compiling them on first access.
+	 */
+	public static ChargingZones getOrCreate(Network network, @Nullable ActivityFacilities facilities,
+			@Nullable URL zonesUrl, double cellSize) {
+		try {
+			return ZONES.get(network, () -> new ChargingZones(
+					zonesUrl == null ? Collections.singletonList(DEFAULT_ZONE) : readZones(zonesUrl), cellSize, network,
+					facilities));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static final double[][][] DEFAULT_ZONE = { { //
+			{ 722086.08, 718972.35, 718919.14, 719757.69, 721098.86, 722456.12, 724273.49, 724374.48, 723648.26 },
+			{ 6174341.30, 6174272.17, 6176321.60, 6177852.24, 6178852.42, 6178605.02, 6177054.33, 6175777.20,
+					6174580.74 } } };
+
+	/**
+	 * Reads all polygons (including holes) of the features of a shape file.
+	 *
+	 * @return polygons as arrays of rings, each ring given as {xs, ys}
+	 */
+	static List<double[][][]> readZones(URL zonesUrl) {
+		List<double[][][]> polygons = new ArrayList<>();
+		for (SimpleFeature feature : ShapeFileReader.getAllFeatures(zonesUrl)) {
+			Geometry geometry = (Geometry)feature.getDefaultGeometry();
+			for (int g = 0; g < geometry.getNumGeometries(); g++) {
+				Polygon polygon = (Polygon)geometry.getGeometryN(g);
+				double[][][] rings = new double[polygon.getNumInteriorRing() + 1][][];
+				rings[0] = toRing(polygon.getExteriorRing());
+				for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+					rings[r + 1] = toRing(polygon.getInteriorRingN(r));
+				}
+				polygons.add(rings);
+			}
+		}
+		log.info(polygons.size() + " charging zone polygons read from " + zonesUrl);
+		return polygons;
+	}
+
+	private static double[][] toRing(LineString ring) {
+		// JTS rings are closed, the last point repeats the first one
+		int size = ring.getNumPoints() - 1;
+		double[][] xys = new double[2][size];
+		for (int i = 0; i < size; i++) {
+			xys[0][i] = ring.getCoordinateN(i).x;
+			xys[1][i] = ring.getCoordinateN(i).y;
+		}
+		return xys;
+	}
+
+	private static final byte OUTSIDE = 0;
+	private static final byte INSIDE = 1;
+	private static final byte BOUNDARY = 2;
+
+	private final List<double[][][]> polygons;
+
+	private final double minX;
+	private final double minY;
+	private final double cellSize;
+	private final int columns;
+	private final int rows;
+	private final byte[] cells;
+	private final int[][] boundaryPolygons;// polygons crossing a boundary cell
+
+	private final BitSet insideLinks = new BitSet();
+	private final BitSet insideFacilities = new BitSet();
+	private final BitSet knownFacilities = new BitSet();
+
+	public ChargingZones(List<double[][][]> polygons, double cellSize, Network network,
+			@Nullable ActivityFacilities facilities) {
+		this.polygons = polygons;
+		this.cellSize = cellSize;
+
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (double[][][] polygon : polygons) {
+			for (double x : polygon[0][0]) {
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+			}
+			for (double y : polygon[0][1]) {
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+			}
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.columns = polygons.isEmpty() ? 0 : (int)((maxX - minX) / cellSize) + 1;
+		this.rows = polygons.isEmpty() ? 0 : (int)((maxY - minY) / cellSize) + 1;
+		this.cells = new byte[columns * rows];
+		this.boundaryPolygons = new int[columns * rows][];
+		rasterize();
+
+		for (Link link : network.getLinks().values()) {
+			if (isInside(link.getCoord())) {
+				insideLinks.set(link.getId().index());
+			}
+		}
+		if (facilities != null) {
+			for (ActivityFacility facility : facilities.getFacilities().values()) {
+				if (facility.getCoord() != null) {
+					int index = facility.getId().index();
+					knownFacilities.set(index);
+					if (isInside(facility.getCoord())) {
+						insideFacilities.set(index);
+					}
+				}
+			}
+		}
+		log.info("Charging zones compiled: " + polygons.size() + " polygons, " + columns + "x" + rows + " cells, "
+				+ insideLinks.cardinality() + " links and " + insideFacilities.cardinality() + " facilities inside");
+	}
+
+	private void rasterize() {
+		BitSet[] crossingPolygons = new BitSet[cells.length];
+		for (int p = 0; p < polygons.size(); p++) {
+			// cells touched by the bounding box of an edge may be crossed by the polygon boundary
+			for (double[][] ring : polygons.get(p)) {
+				int size = ring[0].length;
+				for (int i = 0, j = size - 1; i < size; j = i++) {
+					int c0 = column(Math.min(ring[0][i], ring[0][j]));
+					int c1 = column(Math.max(ring[0][i], ring[0][j]));
+					int r0 = row(Math.min(ring[1][i], ring[1][j]));
+					int r1 = row(Math.max(ring[1][i], ring[1][j]));
+					for (int r = r0; r <= r1; r++) {
+						for (int c = c0; c <= c1; c++) {
+							int cell = r * columns + c;
+							if (crossingPolygons[cell] == null) {
+								crossingPolygons[cell] = new BitSet();
+							}
+							crossingPolygons[cell].set(p);
+						}
+					}
+				}
+			}
+		}
+
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				int cell = r * columns + c;
+				BitSet crossing = crossingPolygons[cell];
+				double centreX = minX + (c + 0.5) * cellSize;
+				double centreY = minY + (r + 0.5) * cellSize;
+				boolean inside = false;
+				for (int p = 0; p < polygons.size() && !inside; p++) {
+					// cells not crossed by a polygon are either completely inside or outside of it
+					inside = (crossing == null || !crossing.get(p)) && isInsidePolygon(polygons.get(p), centreX,
+							centreY);
+				}
+				if (inside) {
+					cells[cell] = INSIDE;
+				} else if (crossing != null) {
+					cells[cell] = BOUNDARY;
+					boundaryPolygons[cell] = crossing.stream().toArray();
+				}
+			}
+		}
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min((int)((x - minX) / cellSize), columns - 1));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min((int)((y - minY) / cellSize), rows - 1));
+	}
+
+	public boolean isInside(Coord coord) {
+		double x = coord.getX();
+		double y = coord.getY();
+		if (x < minX || y < minY) {
+			return false;
+		}
+		int c = (int)((x - minX) / cellSize);
+		int r = (int)((y - minY) / cellSize);
+		if (c >= columns || r >= rows) {
+			return false;
+		}
+		int cell = r * columns + c;
+		switch (cells[cell]) {
+			case INSIDE:
+				return true;
+			case BOUNDARY:
+				for (int p : boundaryPolygons[cell]) {
+					if (isInsidePolygon(polygons.get(p), x, y)) {
+						return true;
+					}
+				}
+				return false;
+			default:
+				return false;
+		}
+	}
+
+	public boolean isInside(Id<Link> linkId) {
+		return insideLinks.get(linkId.index());
+	}
+
+	/**
+	 * Tests the activity location: the precomputed flag of its facility if known, otherwise its coord, otherwise its
+	 * link.
+	 */
+	public boolean isInside(Activity activity) {
+		Id<ActivityFacility> facilityId = activity.getFacilityId();
+		if (facilityId != null && knownFacilities.get(facilityId.index())) {
+			return insideFacilities.get(facilityId.index());
+		}
+		if (activity.getCoord() != null) {
+			return isInside(activity.getCoord());
+		}
+		return activity.getLinkId() != null && isInside(activity.getLinkId());
+	}
+
+	// even-odd rule over all rings, so holes are excluded
+	private static boolean isInsidePolygon(double[][][] polygon, double x, double y) {
+		boolean oddNodes = false;
+		for (double[][] ring : polygon) {
+			double[] xs = ring[0];
+			double[] ys = ring[1];
+			for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+				if ((ys[i] < y && ys[j] >= y || ys[j] < y && ys[i] >= y)
+						&& xs[i] + (y - ys[i]) / (ys[j] - ys[i]) * (xs[j] - xs[i]) < x) {
+					oddNodes = !oddNodes;
+				}
+			}
+		}
+		return oddNodes;
+	}
+}
@@ -0,0 +1,314 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.contrib.ev.fleet.ElectricVehicleSpecification;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+import org.matsim.core.router.util.LeastCostPathCalculator.Path;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Energy-constrained earliest-arrival search for EV trips that need charging. The search runs label-setting over the
+ * states (node, SoC bucket): driving a link consumes energy (states that would deplete the battery are dropped), and
+ * traversing a link with a public charger offers a recharge arc that stays at the link for the minimum charge time and
+ * adds the energy that can be charged meanwhile. The first label that reaches the destination gives the whole staged
+ * path (legs and charging stops) from a single search.
+ * <p>
+ * Within one SoC bucket only the earliest label is kept (with its exact SoC), so the result is optimal up to the SoC
+ * discretisation. Visited states are kept in a primitive open-addressing table that is reused between searches. Not
+ * thread-safe, each routing module owns one calculator.
+ */
+public final class EnergyConstrainedPathCalculator {
+
+	public static final class ChargingStop {
+		public final ChargerSpecification charger;
+		public final Link link;
+		public final double arrivalTime;
+		public final double duration;
+		public final double socAfterCharging;
+
+		ChargingStop(ChargerSpecification charger, Link link, double arrivalTime, double duration,
+				double socAfterCharging) {
+			this.charger = charger;
+			this.link = link;
+			this.arrivalTime = arrivalTime;
+			this.duration = duration;
+			this.socAfterCharging = socAfterCharging;
+		}
+	}
+
+	/**
+	 * Legs and charging stops of a path; leg i ends at stop i (or at the destination if it is the last one). Leg paths
+	 * contain the links between the start and end link of the leg, like {@link Path}s of a
+	 * {@link org.matsim.core.router.util.LeastCostPathCalculator}.
+	 */
+	public static final class StagedPath {
+		public final List<Path> legs;
+		public final double[] legDepartureTimes;
+		public final List<ChargingStop> stops;
+		public final double arrivalSoc;
+
+		StagedPath(List<Path> legs, double[] legDepartureTimes, List<ChargingStop> stops, double arrivalSoc) {
+			this.legs = legs;
+			this.legDepartureTimes = legDepartureTimes;
+			this.stops = stops;
+			this.arrivalSoc = arrivalSoc;
+		}
+	}
+
+	private static final int NO_SLOT = -1;
+
+	private final TravelTime travelTime;
+	private final EnergyConsumptionEstimator consumptionEstimator;
+	private final ChargerSpatialIndex chargerIndex;
+	private final double chargingDuration;
+	private final int socBuckets;
+	private final int maxSettledStates;
+
+	// state table: open addressing over (node index, SoC bucket), entries valid only if stamped with the current search
+	private long[] tableKeys = new long[1 << 12];
+	private int[] tableStamps = new int[1 << 12];
+	private int[] tableSlots = new int[1 << 12];
+	private int stamp;
+
+	// per-state labels, indexed by slot
+	private int slotCount;
+	private Node[] nodes = new Node[1 << 11];
+	private double[] times = new double[1 << 11];
+	private double[] socs = new double[1 << 11];
+	private int[] predecessors = new int[1 << 11];
+	private Link[] viaLinks = new Link[1 << 11];
+	private ChargerSpecification[] viaChargers = new ChargerSpecification[1 << 11];
+
+	private final IndexedMinHeap heap = new IndexedMinHeap(1 << 11);
+
+	public EnergyConstrainedPathCalculator(TravelTime travelTime, EnergyConsumptionEstimator consumptionEstimator,
+			ChargerSpatialIndex chargerIndex, double chargingDuration, int socBuckets, int maxSettledStates) {
+		this.travelTime = travelTime;
+		this.consumptionEstimator = consumptionEstimator;
+		this.chargerIndex = chargerIndex;
+		this.chargingDuration = chargingDuration;
+		this.socBuckets = socBuckets;
+		this.maxSettledStates = maxSettledStates;
+	}
+
+	/**
+	 * @return the earliest-arriving feasible staged path, or null if the destination cannot be reached (within the
+	 * state limit) without depleting the battery
+	 */
+	@Nullable
+	public StagedPath calcStagedPath(Link fromLink, Link toLink, double departureTime, ElectricVehicleSpecification ev,
+			double initialSoc) {
+		double capacity = ev.getBatteryCapacity();
+		long chargerTypeMask = chargerIndex.getChargerTypeMask(ev);
+		Node targetNode = toLink.getFromNode();
+		startSearch();
+
+		reach(fromLink.getToNode(), bucket(initialSoc, capacity), departureTime, initialSoc, NO_SLOT, null, null);
+		int settledStates = 0;
+		while (!heap.isEmpty()) {
+			int slot = heap.poll();
+			Node node = nodes[slot];
+			if (node == targetNode) {
+				return createStagedPath(slot, fromLink, toLink, departureTime);
+			}
+			if (++settledStates > maxSettledStates) {
+				return null;
+			}
+
+			double time = times[slot];
+			double soc = socs[slot];
+			for (Link link : node.getOutLinks().values()) {
+				double newSoc = soc - consumptionEstimator.estimateLinkConsumption(ev, link, time);
+				if (newSoc < 0) {
+					continue;
+				}
+				double newTime = time + travelTime.getLinkTravelTime(link, time, null, null);
+				Node toNode = link.getToNode();
+				reach(toNode, bucket(newSoc, capacity), newTime, newSoc, slot, link, null);
+
+				ChargerSpecification charger = selectCharger(link, chargerTypeMask);
+				if (charger != null && newSoc < capacity) {
+					double maxPowerEstimate = Math.min(charger.getPlugPower(), capacity / 3.6);
+					double chargedSoc = Math.min(newSoc + (chargingDuration * maxPowerEstimate) / 1.5, capacity);
+					reach(toNode, bucket(chargedSoc, capacity), newTime + chargingDuration, chargedSoc, slot, link,
+							charger);
+				}
+			}
+		}
+		return null;
+	}
+
+	// the most powerful compatible public charger on the link
+	private ChargerSpecification selectCharger(Link link, long chargerTypeMask) {
+		ChargerSpecification[] chargers = chargerIndex.getPublicChargersOnLink(link);
+		if (chargers == null) {
+			return null;
+		}
+		ChargerSpecification selected = null;
+		for (int i = 0; i < chargers.length; i++) {
+			if (chargerIndex.isCompatible(link, i, chargerTypeMask) && (selected == null
+					|| chargers[i].getPlugPower() > selected.getPlugPower())) {
+				selected = chargers[i];
+			}
+		}
+		return selected;
+	}
+
+	private int bucket(double soc, double capacity) {
+		return Math.min((int)(soc / capacity * socBuckets), socBuckets - 1);
+	}
+
+	private StagedPath createStagedPath(int targetSlot, Link fromLink, Link toLink, double departureTime) {
+		List<Path> legs = new ArrayList<>();
+		List<ChargingStop> stops = new ArrayList<>();
+		List<Double> legDepartureTimes = new ArrayList<>();
+
+		// collect the states backwards, then split them into legs at the recharge arcs
+		List<Integer> slots = new ArrayList<>();
+		for (int slot = targetSlot; slot != NO_SLOT; slot = predecessors[slot]) {
+			slots.add(slot);
+		}
+		Collections.reverse(slots);
+
+		List<Node> legNodes = new ArrayList<>();
+		List<Link> legLinks = new ArrayList<>();
+		double legDepartureTime = departureTime;
+		legNodes.add(nodes[slots.get(0)]);
+		for (int i = 1; i < slots.size(); i++) {
+			int slot = slots.get(i);
+			ChargerSpecification charger = viaChargers[slot];
+			if (charger == null) {
+				legLinks.add(viaLinks[slot]);
+				legNodes.add(nodes[slot]);
+			} else {
+				// the charger link is the end link of this leg and the start link of the next one
+				double arrivalTime = times[slot] - chargingDuration;
+				legs.add(new Path(legNodes, legLinks, arrivalTime - legDepartureTime, arrivalTime - legDepartureTime));
+				legDepartureTimes.add(legDepartureTime);
+				stops.add(new ChargingStop(charger, viaLinks[slot], arrivalTime, chargingDuration, socs[slot]));
+				legDepartureTime = times[slot];
+				legNodes = new ArrayList<>();
+				legLinks = new ArrayList<>();
+				legNodes.add(nodes[slot]);
+			}
+		}
+		double arrivalTime = times[targetSlot];
+		legs.add(new Path(legNodes, legLinks, arrivalTime - legDepartureTime, arrivalTime - legDepartureTime));
+		legDepartureTimes.add(legDepartureTime);
+
+		return new StagedPath(legs, legDepartureTimes.stream().mapToDouble(Double::doubleValue).toArray(), stops,
+				socs[targetSlot]);
+	}
+
+	private void startSearch() {
+		heap.clear();
+		slotCount = 0;
+		if (++stamp == Integer.MAX_VALUE) {
+			Arrays.fill(tableStamps, 0);
+			stamp = 1;
+		}
+	}
+
+	private void reach(Node node, int bucket, double time, double soc, int predecessor, Link viaLink,
+			ChargerSpecification viaCharger) {
+		long key = (long)node.getId().index() * socBuckets + bucket;
+		int slot = findSlot(key);
+		if (slot == NO_SLOT) {
+			slot = createSlot(key);
+			nodes[slot] = node;
+		} else if (time >= times[slot]) {
+			return;
+		}
+		times[slot] = time;
+		socs[slot] = soc;
+		predecessors[slot] = predecessor;
+		viaLinks[slot] = viaLink;
+		viaChargers[slot] = viaCharger;
+		heap.insertOrDecrease(slot, time);
+	}
+
+	private int findSlot(long key) {
+		int mask = tableKeys.length - 1;
+		for (int i = hash(key) & mask; tableStamps[i] == stamp; i = (i + 1) & mask) {
+			if (tableKeys[i] == key) {
+				return tableSlots[i];
+			}
+		}
+		return NO_SLOT;
+	}
+
+	private int createSlot(long key) {
+		if (2 * (slotCount + 1) > tableKeys.length) {
+			growTable();
+		}
+		if (slotCount == times.length) {
+			int capacity = 2 * times.length;
+			nodes = Arrays.copyOf(nodes, capacity);
+			times = Arrays.copyOf(times, capacity);
+			socs = Arrays.copyOf(socs, capacity);
+			predecessors = Arrays.copyOf(predecessors, capacity);
+			viaLinks = Arrays.copyOf(viaLinks, capacity);
+			viaChargers = Arrays.copyOf(viaChargers, capacity);
+			heap.ensureCapacity(capacity);
+		}
+		int slot = slotCount++;
+		insert(key, slot);
+		return slot;
+	}
+
+	private void insert(long key, int slot) {
+		int mask = tableKeys.length - 1;
+		int i = hash(key) & mask;
+		while (tableStamps[i] == stamp) {
+			i = (i + 1) & mask;
+		}
+		tableKeys[i] = key;
+		tableSlots[i] = slot;
+		tableStamps[i] = stamp;
+	}
+
+	private void growTable() {
+		long[] oldKeys = tableKeys;
+		int[] oldStamps = tableStamps;
+		int[] oldSlots = tableSlots;
+		tableKeys = new long[2 * oldKeys.length];
+		tableStamps = new int[2 * oldKeys.length];
+		tableSlots = new int[2 * oldKeys.length];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldStamps[i] == stamp) {
+				insert(oldKeys[i], oldSlots[i]);
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,257 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
+import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
+import org.matsim.contrib.ev.example.CONSTANT;
+import org.matsim.contrib.ev.fleet.ElectricVehicle;
+import org.matsim.contrib.ev.fleet.ElectricVehicleSpecification;
+import org.matsim.contrib.ev.fleet.MyElectricVehicleImpl;
+import org.matsim.contrib.ev.fleet.VehicleSize;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.util.TravelTime;
+
+/**
+ * Estimates the energy consumed along a network route. The consumption models are created once per vehicle
+ * specification, so models that read the battery see the capacity and initial SoC of the routed vehicle, and the
+ * result is kept as a cumulative per-link profile in a reusable primitive array, so an estimate costs one pass over
+ * the route links. The estimate is time-dependent: it advances the link enter time along the route and evaluates the
+ * travel time and consumption of each link at the time the link is entered. If a {@link LinkEnergyConsumptionCache} is
+ * given, link consumptions and travel times are evaluated at the start of the time bin in which the link is entered
+ * and shared via the cache; the current time bin is only looked up again once the enter time leaves it. Not
+ * thread-safe, each routing module owns one estimator.
+ */
+public final class EnergyConsumptionEstimator {
+
+	private final Network network;
+	private final TravelTime travelTime;
+	private final DriveEnergyConsumption.Factory driveConsumptionFactory;
+	private final AuxEnergyConsumption.Factory auxConsumptionFactory;
+	private final LinkEnergyConsumptionCache consumptionCache;
+	private final boolean departureTimeOnly;
+
+	private final Map<ElectricVehicleSpecification, ElectricVehicle> pseudoVehicles = new IdentityHashMap<>();
+
+	private NetworkRoute route;
+	private double[] cumulativeConsumptions = new double[256];
+	private int linkCount;
+
+	public EnergyConsumptionEstimator(Network network, TravelTime travelTime,
+			DriveEnergyConsumption.Factory driveConsumptionFactory, AuxEnergyConsumption.Factory auxConsumptionFactory,
+			@Nullable LinkEnergyConsumptionCache consumptionCache) {
+		this(network, travelTime, driveConsumptionFactory, auxConsumptionFactory, consumptionCache, false);
+	}
+
+	/**
+	 * @param departureTimeOnly if true, all links are evaluated at the departure time (or its time bin), as in earlier
+	 *                          versions; only for comparing the estimates
+	 */
+	EnergyConsumptionEstimator(Network network, TravelTime travelTime,
+			DriveEnergyConsumption.Factory driveConsumptionFactory, AuxEnergyConsumption.Factory auxConsumptionFactory,
+			@Nullable LinkEnergyConsumptionCache consumptionCache, boolean departureTimeOnly) {
+		this.network = network;
+		this.travelTime = travelTime;
+		this.driveConsumptionFactory = driveConsumptionFactory;
+		this.auxConsumptionFactory = auxConsumptionFactory;
+		this.consumptionCache = consumptionCache;
+		this.departureTimeOnly = departureTimeOnly;
+	}
+
+	/**
+	 * Estimates the consumption along the links of the route (excluding the start and end link) and returns the
+	 * overall consumption. The cumulative profile is available until the next call.
+	 */
+	public double estimate(ElectricVehicleSpecification ev, NetworkRoute route, double departureTime) {
+		String vehicleType = ev.getVehicleType();
+		VehicleSize size = VehicleSize.of(ev.getBatteryCapacity());
+		List<Id<Link>> linkIds = route.getLinkIds();
+
+		ElectricVehicle pseudoVehicle = getPseudoVehicle(ev);
+		DriveEnergyConsumption driveEnergyConsumption = pseudoVehicle.getDriveEnergyConsumption();
+		AuxEnergyConsumption auxEnergyConsumption = pseudoVehicle.getAuxEnergyConsumption();
+		double sizeCoefficient = getSizeCoefficient(size);
+
+		this.route = route;
+		this.linkCount = linkIds.size();
+		if (cumulativeConsumptions.length < linkCount) {
+			cumulativeConsumptions = Arrays.copyOf(cumulativeConsumptions,
+					Math.max(linkCount, 2 * cumulativeConsumptions.length));
+		}
+
+		double cumulativeConsumption = 0;
+		if (departureTimeOnly) {
+			cumulativeConsumption = estimateAtDepartureTime(driveEnergyConsumption, auxEnergyConsumption, vehicleType,
+					size, sizeCoefficient, linkIds, departureTime);
+		} else if (consumptionCache == null) {
+			double linkEnterTime = departureTime;
+			for (int i = 0; i < linkCount; i++) {
+				Link link = network.getLinks().get(linkIds.get(i));
+				double travelT = travelTime.getLinkTravelTime(link, linkEnterTime, null, null);
+				// may be negative, to accomodate for ERS, where energy charge is directly implemented in the consumption model
+				cumulativeConsumption += calcConsumption(driveEnergyConsumption, auxEnergyConsumption, link, travelT,
+						linkEnterTime, linkEnterTime) * sizeCoefficient;
+				cumulativeConsumptions[i] = cumulativeConsumption;
+				linkEnterTime += travelT;
+			}
+		} else {
+			double linkEnterTime = departureTime;
+			int timeBin = consumptionCache.getTimeBin(linkEnterTime);
+			double timeBinStart = consumptionCache.getTimeBinStart(timeBin);
+			double nextTimeBinStart = consumptionCache.getNextTimeBinStart(timeBin);
+			for (int i = 0; i < linkCount; i++) {
+				if (linkEnterTime >= nextTimeBinStart) {
+					timeBin = consumptionCache.getTimeBin(linkEnterTime);
+					timeBinStart = consumptionCache.getTimeBinStart(timeBin);
+					nextTimeBinStart = consumptionCache.getNextTimeBinStart(timeBin);
+				}
+				Link link = network.getLinks().get(linkIds.get(i));
+				double consumption = consumptionCache.get(vehicleType, size, link, timeBin);
+				double travelT = Double.isNaN(consumption) ?
+						Double.NaN :
+						consumptionCache.getTravelTime(vehicleType, size, link, timeBin);
+				if (Double.isNaN(travelT)) {
+					travelT = travelTime.getLinkTravelTime(link, timeBinStart, null, null);
+					consumption = calcConsumption(driveEnergyConsumption, auxEnergyConsumption, link, travelT,
+							timeBinStart, timeBinStart) * sizeCoefficient;
+					consumptionCache.put(vehicleType, size, link, timeBin, consumption, travelT);
+				}
+				cumulativeConsumption += consumption;
+				cumulativeConsumptions[i] = cumulativeConsumption;
+				linkEnterTime += travelT;
+			}
+		}
+		return cumulativeConsumption;
+	}
+
+	// all links evaluated at the departure time (or at the start of its time bin)
+	private double estimateAtDepartureTime(DriveEnergyConsumption driveEnergyConsumption,
+			AuxEnergyConsumption auxEnergyConsumption, String vehicleType, VehicleSize size, double sizeCoefficient,
+			List<Id<Link>> linkIds, double departureTime) {
+		double cumulativeConsumption = 0;
+		if (consumptionCache == null) {
+			double linkEnterTime = departureTime;
+			for (int i = 0; i < linkCount; i++) {
+				Link link = network.getLinks().get(linkIds.get(i));
+				double travelT = travelTime.getLinkTravelTime(link, departureTime, null, null);
+				cumulativeConsumption += calcConsumption(driveEnergyConsumption, auxEnergyConsumption, link, travelT,
+						linkEnterTime, departureTime) * sizeCoefficient;
+				cumulativeConsumptions[i] = cumulativeConsumption;
+				linkEnterTime += travelT;
+			}
+		} else {
+			int timeBin = consumptionCache.getTimeBin(departureTime);
+			double timeBinStart = consumptionCache.getTimeBinStart(timeBin);
+			for (int i = 0; i < linkCount; i++) {
+				Link link = network.getLinks().get(linkIds.get(i));
+				double consumption = consumptionCache.get(vehicleType, size, link, timeBin);
+				if (Double.isNaN(consumption)) {
+					double travelT = travelTime.getLinkTravelTime(link, timeBinStart, null, null);
+					consumption = calcConsumption(driveEnergyConsumption, auxEnergyConsumption, link, travelT,
+							timeBinStart, timeBinStart) * sizeCoefficient;
+					consumptionCache.put(vehicleType, size, link, timeBin, consumption, travelT);
+				}
+				cumulativeConsumption += consumption;
+				cumulativeConsumptions[i] = cumulativeConsumption;
+			}
+		}
+		return cumulativeConsumption;
+	}
+
+	/**
+	 * Estimates the (size-scaled) consumption of a single link entered at the given time, e.g. for searches that
+	 * explore links one by one.
+	 */
+	public double estimateLinkConsumption(ElectricVehicleSpecification ev, Link link, double linkEnterTime) {
+		ElectricVehicle pseudoVehicle = getPseudoVehicle(ev);
+		String vehicleType = ev.getVehicleType();
+		VehicleSize size = VehicleSize.of(ev.getBatteryCapacity());
+		if (consumptionCache == null) {
+			double travelT = travelTime.getLinkTravelTime(link, linkEnterTime, null, null);
+			return calcConsumption(pseudoVehicle.getDriveEnergyConsumption(), pseudoVehicle.getAuxEnergyConsumption(),
+					link, travelT, linkEnterTime, linkEnterTime) * getSizeCoefficient(size);
+		}
+		int timeBin = consumptionCache.getTimeBin(linkEnterTime);
+		double consumption = consumptionCache.get(vehicleType, size, link, timeBin);
+		if (Double.isNaN(consumption)) {
+			double timeBinStart = consumptionCache.getTimeBinStart(timeBin);
+			double travelT = travelTime.getLinkTravelTime(link, timeBinStart, null, null);
+			consumption = calcConsumption(pseudoVehicle.getDriveEnergyConsumption(),
+					pseudoVehicle.getAuxEnergyConsumption(), link, travelT, timeBinStart, timeBinStart)
+					* getSizeCoefficient(size);
+			consumptionCache.put(vehicleType, size, link, timeBin, consumption, travelT);
+		}
+		return consumption;
+	}
+
+	private ElectricVehicle getPseudoVehicle(ElectricVehicleSpecification ev) {
+		return pseudoVehicles.computeIfAbsent(ev,
+				spec -> MyElectricVehicleImpl.create(ev, driveConsumptionFactory, auxConsumptionFactory, v -> charger -> {
+					throw new UnsupportedOperationException();
+				}));
+	}
+
+	private static double calcConsumption(DriveEnergyConsumption driveEnergyConsumption,
+			AuxEnergyConsumption auxEnergyConsumption, Link link, double travelT, double linkEnterTime, double time) {
+		return driveEnergyConsumption.calcEnergyConsumption(link, travelT, linkEnterTime)
+				+ auxEnergyConsumption.calcEnergyConsumption(time, travelT, link.getId());
+	}
+
+	static double getSizeCoefficient(VehicleSize size) {
+		switch (size) {
+			case SMALL:
+				return CONSTANT.SmallCoef;
+			case LARGE:
+				return CONSTANT.LargeCoef;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * @return number of links in the profile of the last estimate
+	 */
+	public int getLinkCount() {
+		return linkCount;
+	}
+
+	/**
+	 * @return consumption from the route start up to (and including) the i-th link of the last estimate
+	 */
+	public double getCumulativeConsumption(int i) {
+		if (i >= linkCount) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + linkCount);
+		}
+		return cumulativeConsumptions[i];
+	}
+
+	public Id<Link> getLinkId(int i) {
+		return route.getLinkIds().get(i);
+	}
+}
@@ -0,0 +1,288 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.log4j.Logger;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.utils.io.IOUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Counters and latency histograms of the EV routing: how often each decision branch of
+ * {@link MyEvNetworkRoutingModule} is taken (with the latency of the whole trip) and how long the routing phases take.
+ * Each thread records into its own {@link Recorder} without synchronisation. At the end of each iteration the
+ * recorders are merged, written to {@value #FILE_NAME} in the iteration directory and reset.
+ * <p>
+ * The histograms have logarithmic buckets with two significant bits (HDR-style), so the reported quantiles are within
+ * 12.5% of the exact value and a histogram is a fixed array of {@value Histogram#BUCKET_COUNT} counts. The routing modules hold no metrics
+ * at all if they are disabled.
+ */
+public final class EvRoutingMetrics implements IterationEndsListener {
+	private static final Logger log = Logger.getLogger(EvRoutingMetrics.class);
+
+	static final String FILE_NAME = "evRoutingMetrics.csv";
+
+	private static final Cache<ControlerListenerManager, EvRoutingMetrics> INSTANCES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the metrics of the controler, creating them (and registering them for the iteration output) on first
+	 * access.
+	 */
+	public static EvRoutingMetrics getOrCreate(ControlerListenerManager controlerListenerManager,
+			OutputDirectoryHierarchy controlerIO) {
+		try {
+			return INSTANCES.get(controlerListenerManager, () -> {
+				EvRoutingMetrics metrics = new EvRoutingMetrics(controlerIO);
+				controlerListenerManager.addControlerListener(metrics);
+				return metrics;
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Decision branches of the routing of a trip.
+	 */
+	public enum Branch {
+		NON_EV, // no EV, or the trip is not in the plan
+		WALK_ACCESS, // walk/fast walk leg to the car, passed through
+		NO_CHARGING, // base route
+		EN_ROUTE, // charging stops along the route
+		DESTINATION_PUBLIC, // public charger near the destination
+		HOME, // private charger at home
+		WORK, // private charger at work
+		BELOW_MINIMUM_CHARGE_TIME // base route, as the charging time would be below the minimum
+	}
+
+	/**
+	 * Phases of the routing of a trip.
+	 */
+	public enum Phase {
+		BASE_ROUTE, SUB_LEG_ROUTING, CONSUMPTION_ESTIMATE, CHARGER_SEARCH, WALK_LEG
+	}
+
+	private static final Branch[] BRANCHES = Branch.values();
+	private static final Phase[] PHASES = Phase.values();
+
+	/**
+	 * Histogram of non-negative values (nanoseconds), with four buckets per power of two.
+	 */
+	public static final class Histogram {
+		static final int BUCKET_COUNT = 248;
+
+		private final long[] buckets = new long[BUCKET_COUNT];
+		private long count;
+		private long sum;
+		private long max;
+
+		public void record(long value) {
+			buckets[getBucket(Math.max(value, 0))]++;
+			count++;
+			sum += value;
+			max = Math.max(max, value);
+		}
+
+		// values below 4 have their own bucket, above that the two bits after the leading one select the bucket
+		static int getBucket(long value) {
+			if (value < 4) {
+				return (int)value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int)(value >>> (exponent - 2)) & 3;
+			return (exponent - 1) * 4 + subBucket;
+		}
+
+		static long getBucketLowerBound(int bucket) {
+			if (bucket < 4) {
+				return bucket;
+			}
+			int exponent = bucket / 4 + 1;
+			return (4L + bucket % 4) << (exponent - 2);
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				buckets[i] += other.buckets[i];
+			}
+			count += other.count;
+			sum += other.sum;
+			max = Math.max(max, other.max);
+		}
+
+		void reset() {
+			Arrays.fill(buckets, 0);
+			count = 0;
+			sum = 0;
+			max = 0;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double)sum / count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return the middle of the bucket containing the quantile (capped by the maximum)
+		 */
+		public double getValueAtQuantile(double quantile) {
+			long rank = (long)Math.ceil(quantile * count);
+			long cumulativeCount = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				cumulativeCount += buckets[i];
+				if (cumulativeCount >= rank && cumulativeCount > 0) {
+					long lowerBound = getBucketLowerBound(i);
+					long upperBound = i + 1 < BUCKET_COUNT ? getBucketLowerBound(i + 1) : lowerBound;
+					return Math.min((lowerBound + upperBound) / 2.0, max);
+				}
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Metrics of one thread. Not thread-safe.
+	 */
+	public static final class Recorder {
+		private final WeakReference<Thread> thread = new WeakReference<>(Thread.currentThread());
+		private final Histogram[] branches = createHistograms(BRANCHES.length);
+		private final Histogram[] phases = createHistograms(PHASES.length);
+
+		public void recordTrip(Branch branch, long nanos) {
+			branches[branch.ordinal()].record(nanos);
+		}
+
+		public void recordPhase(Phase phase, long nanos) {
+			phases[phase.ordinal()].record(nanos);
+		}
+
+		private boolean isThreadAlive() {
+			Thread t = thread.get();
+			return t != null && t.isAlive();
+		}
+	}
+
+	private static Histogram[] createHistograms(int count) {
+		Histogram[] histograms = new Histogram[count];
+		for (int i = 0; i < count; i++) {
+			histograms[i] = new Histogram();
+		}
+		return histograms;
+	}
+
+	private final OutputDirectoryHierarchy controlerIO;
+	private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Recorder> threadRecorders = ThreadLocal.withInitial(() -> {
+		Recorder recorder = new Recorder();
+		recorders.add(recorder);
+		return recorder;
+	});
+
+	public EvRoutingMetrics(OutputDirectoryHierarchy controlerIO) {
+		this.controlerIO = controlerIO;
+	}
+
+	/**
+	 * @return the recorder of the current thread
+	 */
+	public Recorder getRecorder() {
+		return threadRecorders.get();
+	}
+
+	/**
+	 * Merges the recorders into the histograms and resets them. The recorders of threads that have terminated are
+	 * dropped. Must not run concurrently with routing; at the end of an iteration, the replanning threads have finished.
+	 */
+	void merge(Histogram[] branchHistograms, Histogram[] phaseHistograms) {
+		for (Recorder recorder : recorders) {
+			for (int i = 0; i < branchHistograms.length; i++) {
+				branchHistograms[i].add(recorder.branches[i]);
+				recorder.branches[i].reset();
+			}
+			for (int i = 0; i < phaseHistograms.length; i++) {
+				phaseHistograms[i].add(recorder.phases[i]);
+				recorder.phases[i].reset();
+			}
+		}
+		recorders.removeIf(recorder -> !recorder.isThreadAlive());
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		Histogram[] branchHistograms = createHistograms(BRANCHES.length);
+		Histogram[] phaseHistograms = createHistograms(PHASES.length);
+		merge(branchHistograms, phaseHistograms);
+
+		String file = controlerIO.getIterationFilename(event.getIteration(), FILE_NAME);
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(file)) {
+			writer.write("type;name;count;mean_us;p50_us;p90_us;p99_us;max_us");
+			writer.newLine();
+			for (Branch branch : BRANCHES) {
+				writeRow(writer, "branch", branch.name(), branchHistograms[branch.ordinal()]);
+			}
+			for (Phase phase : PHASES) {
+				writeRow(writer, "phase", phase.name(), phaseHistograms[phase.ordinal()]);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		long trips = 0;
+		for (Histogram histogram : branchHistograms) {
+			trips += histogram.getCount();
+		}
+		log.info("EV routing metrics of iteration " + event.getIteration() + ": " + trips + " trips, written to "
+				+ file);
+	}
+
+	private static void writeRow(BufferedWriter writer, String type, String name, Histogram histogram)
+			throws IOException {
+		writer.write(type + ";" + name + ";" + histogram.getCount() + ";" + toMicros(histogram.getMean()) + ";"
+				+ toMicros(histogram.getValueAtQuantile(0.5)) + ";" + toMicros(histogram.getValueAtQuantile(0.9)) + ";"
+				+ toMicros(histogram.getValueAtQuantile(0.99)) + ";" + toMicros(histogram.getMax()));
+		writer.newLine();
+	}
+
+	private static double toMicros(double nanos) {
+		return Math.round(nanos / 100) / 10.;
+	}
+}
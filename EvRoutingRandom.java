@@ -0,0 +1,102 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.concurrent.ExecutionException;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Counter-based random numbers for the charging decisions of the routing. Each number is a SplitMix64 hash of (global
+ * seed, person, trip index, iteration, draw), so there is no shared generator state and nothing is allocated per draw.
+ * A person's decisions do not depend on which thread routes the trip or on what was routed before, which makes runs
+ * reproducible for any number of threads.
+ */
+public final class EvRoutingRandom implements IterationStartsListener {
+
+	private static final Cache<ControlerListenerManager, EvRoutingRandom> INSTANCES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the random source of the controler, creating it (and registering it for the iteration updates) on first
+	 * access.
+	 */
+	public static EvRoutingRandom getOrCreate(long seed, ControlerListenerManager controlerListenerManager) {
+		try {
+			return INSTANCES.get(controlerListenerManager, () -> {
+				EvRoutingRandom random = new EvRoutingRandom(seed);
+				controlerListenerManager.addControlerListener(random);
+				return random;
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private final long seed;
+	private volatile int iteration;
+
+	/**
+	 * Random source that stays at iteration 0 unless registered as a controler listener.
+	 */
+	public EvRoutingRandom(long seed) {
+		this.seed = mix(seed + GOLDEN_GAMMA);
+	}
+
+	/**
+	 * @return a uniformly distributed number in [0, 1), always the same for the same arguments within an iteration
+	 */
+	public double nextDouble(Id<Person> personId, int trip, int draw) {
+		return (hash(personId, trip, draw) >>> 11) * 0x1.0p-53;
+	}
+
+	private long hash(Id<Person> personId, int trip, int draw) {
+		// the string hash (cached by String) does not depend on the order in which the ids were created
+		long h = mix(seed + GOLDEN_GAMMA * personId.toString().hashCode());
+		h = mix(h + GOLDEN_GAMMA * trip);
+		h = mix(h + GOLDEN_GAMMA * iteration);
+		return mix(h + GOLDEN_GAMMA * draw);
+	}
+
+	// finaliser of SplitMix64
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public int getIteration() {
+		return iteration;
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		iteration = event.getIteration();
+	}
+}
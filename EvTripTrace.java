@@ -0,0 +1,324 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.contrib.ev.infrastructure.Charger;
+import org.matsim.contrib.ev.routing.EvRoutingMetrics.Branch;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.events.ShutdownEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.controler.listener.ShutdownListener;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Trace of the routed EV trips: person, departure time, estimated SoC before and after the trip, routing branch,
+ * charger, charging duration and walk time. Each routing thread appends fixed-size records to its own ring buffer,
+ * without locks and without ever blocking: if the ring is full, the record is dropped and counted. A background thread
+ * drains the rings into {@value #FILE_NAME} in the output directory through a file channel.
+ * <p>
+ * The file starts with a header (magic number, version, branch names) followed by tagged records. Person, charger and
+ * link ids are written as indices; the first trip record using an index is preceded by a record with the id. Use
+ * {@link EvTripTraceReader} to read the file or convert it to CSV.
+ */
+public final class EvTripTrace implements IterationStartsListener, ShutdownListener {
+	private static final Logger log = Logger.getLogger(EvTripTrace.class);
+
+	static final String FILE_NAME = "evTripTrace.bin";
+	static final int MAGIC = 0x45565454;
+	static final int VERSION = 1;
+
+	static final byte TRIP = 0;
+	static final byte PERSON_ID = 1;
+	static final byte CHARGER_ID = 2;
+	static final byte LINK_ID = 3;
+
+	// iteration, person, departure time, SoC before, SoC after, branch, charger, charger link, charging duration, walk time
+	static final int TRIP_SIZE = 4 + 4 + 8 + 8 + 8 + 1 + 4 + 4 + 8 + 8;
+
+	private static final int RING_CAPACITY = 4096;// [records]
+	private static final int BUFFER_SIZE = 1 << 16;// [bytes]
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final Cache<ControlerListenerManager, EvTripTrace> INSTANCES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the trace of the controler, creating it (and registering it for closing at shutdown) on first access.
+	 */
+	public static EvTripTrace getOrCreate(ControlerListenerManager controlerListenerManager,
+			OutputDirectoryHierarchy controlerIO) {
+		try {
+			return INSTANCES.get(controlerListenerManager, () -> {
+				EvTripTrace trace = new EvTripTrace(controlerIO.getOutputFilename(FILE_NAME));
+				controlerListenerManager.addControlerListener(trace);
+				return trace;
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Single-producer single-consumer ring of trip records, owned by one routing thread.
+	 */
+	public static final class Ring {
+		private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+		private final ByteBuffer records = ByteBuffer.allocate(RING_CAPACITY * TRIP_SIZE);
+		private final ByteBuffer drainView = records.duplicate();// positioned by the writer thread
+		private final AtomicLong head = new AtomicLong();// next record to drain, written by the writer thread
+		private final AtomicLong tail = new AtomicLong();// next record to append, written by the owner thread
+		private long droppedRecords;// written by the owner thread
+
+		/**
+		 * Appends a record, or drops it if the ring is full.
+		 *
+		 * @param chargerId   null if there is no charging stop, or the charger is not known (e.g. a cached route)
+		 * @param chargerLink null if there is no charging stop
+		 */
+		public void append(int iteration, Id<Person> personId, double departureTime, double socBefore,
+				double socAfter, Branch branch, @Nullable Id<Charger> chargerId, @Nullable Id<Link> chargerLink,
+				double chargingDuration, double walkTime) {
+			long t = tail.get();
+			if (t - head.get() == RING_CAPACITY) {
+				droppedRecords++;
+				return;
+			}
+			int position = (int)(t % RING_CAPACITY) * TRIP_SIZE;
+			records.putInt(position, iteration);
+			records.putInt(position + 4, personId.index());
+			records.putDouble(position + 8, departureTime);
+			records.putDouble(position + 16, socBefore);
+			records.putDouble(position + 24, socAfter);
+			records.put(position + 32, (byte)branch.ordinal());
+			records.putInt(position + 33, chargerId == null ? -1 : chargerId.index());
+			records.putInt(position + 37, chargerLink == null ? -1 : chargerLink.index());
+			records.putDouble(position + 41, chargingDuration);
+			records.putDouble(position + 49, walkTime);
+			tail.lazySet(t + 1);// publishes the record
+		}
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final List<Ring> rings = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Ring> localRings = ThreadLocal.withInitial(() -> {
+		Ring ring = new Ring();
+		rings.add(ring);
+		return ring;
+	});
+	private final Thread writerThread;
+	private volatile boolean closing;
+	private volatile int iteration = -1;// before the first iteration
+
+	// ids already written, only accessed by the writer thread
+	private final BitSet writtenPersons = new BitSet();
+	private final BitSet writtenChargers = new BitSet();
+	private final BitSet writtenLinks = new BitSet();
+	private long writtenRecords;
+	private long droppedRecords;// of the removed rings
+
+	public EvTripTrace(String file) {
+		try {
+			channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			writeHeader();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		writerThread = new Thread(this::run, "EvTripTrace writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * @return the ring of the current thread
+	 */
+	public Ring getRing() {
+		return localRings.get();
+	}
+
+	public int getIteration() {
+		return iteration;
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		iteration = event.getIteration();
+	}
+
+	@Override
+	public void notifyShutdown(ShutdownEvent event) {
+		close();
+	}
+
+	/**
+	 * Writes the remaining records and closes the file. Records appended afterwards are ignored.
+	 */
+	public void close() {
+		if (closing) {
+			return;
+		}
+		closing = true;
+		LockSupport.unpark(writerThread);
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long droppedRecords = this.droppedRecords;
+		for (Ring ring : rings) {
+			droppedRecords += ring.droppedRecords;
+		}
+		log.info("EV trip trace: " + writtenRecords + " trips written, " + droppedRecords + " dropped");
+	}
+
+	private void writeHeader() throws IOException {
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		Branch[] branches = Branch.values();
+		buffer.put((byte)branches.length);
+		for (Branch branch : branches) {
+			putString(branch.name());
+		}
+		flush();
+	}
+
+	private void run() {
+		try {
+			while (!closing) {
+				if (drain() == 0) {
+					flush();
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+			drain();
+			flush();
+		} catch (IOException e) {
+			log.error("EV trip trace could not be written", e);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("EV trip trace could not be closed", e);
+			}
+		}
+	}
+
+	private int drain() throws IOException {
+		int drained = 0;
+		for (Ring ring : rings) {
+			long h = ring.head.get();
+			long t = ring.tail.get();
+			for (; h < t; h++) {
+				writeTrip(ring, (int)(h % RING_CAPACITY) * TRIP_SIZE);
+				drained++;
+			}
+			ring.head.lazySet(h);// frees the slots
+
+			// the rings of terminated threads are removed once drained (tail is not changed anymore)
+			Thread owner = ring.owner.get();
+			if ((owner == null || !owner.isAlive()) && ring.tail.get() == h) {
+				droppedRecords += ring.droppedRecords;
+				rings.remove(ring);
+			}
+		}
+		return drained;
+	}
+
+	private void writeTrip(Ring ring, int position) throws IOException {
+		ByteBuffer records = ring.records;
+		int personIndex = records.getInt(position + 4);
+		int chargerIndex = records.getInt(position + 33);
+		int linkIndex = records.getInt(position + 37);
+		if (!writtenPersons.get(personIndex)) {
+			writeId(PERSON_ID, personIndex, Id.get(personIndex, Person.class).toString());
+			writtenPersons.set(personIndex);
+		}
+		if (chargerIndex >= 0 && !writtenChargers.get(chargerIndex)) {
+			writeId(CHARGER_ID, chargerIndex, Id.get(chargerIndex, Charger.class).toString());
+			writtenChargers.set(chargerIndex);
+		}
+		if (linkIndex >= 0 && !writtenLinks.get(linkIndex)) {
+			writeId(LINK_ID, linkIndex, Id.get(linkIndex, Link.class).toString());
+			writtenLinks.set(linkIndex);
+		}
+		ensureRemaining(1 + TRIP_SIZE);
+		buffer.put(TRIP);
+		ring.drainView.limit(position + TRIP_SIZE);
+		ring.drainView.position(position);
+		buffer.put(ring.drainView);
+		writtenRecords++;
+	}
+
+	private void writeId(byte tag, int index, String id) throws IOException {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		ensureRemaining(1 + 4 + 2 + bytes.length);
+		buffer.put(tag);
+		buffer.putInt(index);
+		buffer.putShort((short)bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void putString(String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short)bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void ensureRemaining(int size) throws IOException {
+		if (buffer.remaining() < size) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
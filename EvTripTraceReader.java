@@ -0,0 +1,207 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.matsim.core.utils.io.IOUtils;
+
+import com.google.common.base.Strings;
+
+/**
+ * Reads the trip records written by {@link EvTripTrace}, with the ids resolved. Can be run to convert a trace to CSV:
+ * {@code EvTripTraceReader <trace file> <csv file>}.
+ */
+public final class EvTripTraceReader {
+
+	public static final class TripRecord {
+		public final int iteration;// -1 for the routing before the first iteration
+		public final String personId;
+		public final double departureTime;
+		public final double socBefore;// [J]
+		public final double socAfter;// [J]
+		public final String branch;
+		public final String chargerId;// null if unknown or not charging
+		public final String chargerLinkId;// null if not charging
+		public final double chargingDuration;// [s]
+		public final double walkTime;// [s]
+
+		private TripRecord(int iteration, String personId, double departureTime, double socBefore, double socAfter,
+				String branch, String chargerId, String chargerLinkId, double chargingDuration, double walkTime) {
+			this.iteration = iteration;
+			this.personId = personId;
+			this.departureTime = departureTime;
+			this.socBefore = socBefore;
+			this.socAfter = socAfter;
+			this.branch = branch;
+			this.chargerId = chargerId;
+			this.chargerLinkId = chargerLinkId;
+			this.chargingDuration = chargingDuration;
+			this.walkTime = walkTime;
+		}
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final Map<Integer, String> personIds = new HashMap<>();
+	private final Map<Integer, String> chargerIds = new HashMap<>();
+	private final Map<Integer, String> linkIds = new HashMap<>();
+	private String[] branches;
+
+	private EvTripTraceReader(FileChannel channel) {
+		this.channel = channel;
+		buffer.limit(0);
+	}
+
+	/**
+	 * Passes all trip records of the trace, in the order in which they have been written, to the consumer.
+	 */
+	public static void read(Path file, Consumer<TripRecord> consumer) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			EvTripTraceReader reader = new EvTripTraceReader(channel);
+			reader.readHeader(file);
+			while (reader.fill(1)) {
+				reader.readRecord(consumer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static void convertToCsv(Path traceFile, String csvFile) {
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(csvFile)) {
+			writer.write("iteration;person;departureTime;socBefore;socAfter;branch;charger;chargerLink;"
+					+ "chargingDuration;walkTime");
+			writer.newLine();
+			read(traceFile, trip -> {
+				try {
+					writer.write(trip.iteration + ";" + trip.personId + ";" + trip.departureTime + ";" + trip.socBefore
+							+ ";" + trip.socAfter + ";" + trip.branch + ";" + Strings.nullToEmpty(trip.chargerId) + ";"
+							+ Strings.nullToEmpty(trip.chargerLinkId) + ";" + trip.chargingDuration + ";"
+							+ trip.walkTime);
+					writer.newLine();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			throw new IllegalArgumentException("Usage: EvTripTraceReader <trace file> <csv file>");
+		}
+		convertToCsv(Paths.get(args[0]), args[1]);
+	}
+
+	private void readHeader(Path file) throws IOException {
+		if (!fill(4 + 4 + 1) || buffer.getInt() != EvTripTrace.MAGIC) {
+			throw new IOException(file + " is not an EV trip trace");
+		}
+		int version = buffer.getInt();
+		if (version != EvTripTrace.VERSION) {
+			throw new IOException("Unsupported EV trip trace version " + version + " in " + file);
+		}
+		branches = new String[buffer.get()];
+		for (int i = 0; i < branches.length; i++) {
+			branches[i] = readString();
+		}
+	}
+
+	private void readRecord(Consumer<TripRecord> consumer) throws IOException {
+		byte tag = buffer.get();
+		switch (tag) {
+			case EvTripTrace.TRIP:
+				require(EvTripTrace.TRIP_SIZE);
+				int iteration = buffer.getInt();
+				String personId = personIds.get(buffer.getInt());
+				double departureTime = buffer.getDouble();
+				double socBefore = buffer.getDouble();
+				double socAfter = buffer.getDouble();
+				String branch = branches[buffer.get()];
+				String chargerId = chargerIds.get(buffer.getInt());
+				String chargerLinkId = linkIds.get(buffer.getInt());
+				consumer.accept(new TripRecord(iteration, personId, departureTime, socBefore, socAfter, branch,
+						chargerId, chargerLinkId, buffer.getDouble(), buffer.getDouble()));
+				break;
+			case EvTripTrace.PERSON_ID:
+				readId(personIds);
+				break;
+			case EvTripTrace.CHARGER_ID:
+				readId(chargerIds);
+				break;
+			case EvTripTrace.LINK_ID:
+				readId(linkIds);
+				break;
+			default:
+				throw new IOException("Unknown record tag " + tag);
+		}
+	}
+
+	private void readId(Map<Integer, String> ids) throws IOException {
+		require(4);
+		int index = buffer.getInt();
+		ids.put(index, readString());
+	}
+
+	private String readString() throws IOException {
+		require(2);
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		require(bytes.length);
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void require(int size) throws IOException {
+		if (!fill(size)) {
+			throw new IOException("Truncated EV trip trace");
+		}
+	}
+
+	// makes at least size bytes available, false at the end of the file
+	private boolean fill(int size) throws IOException {
+		if (buffer.remaining() >= size) {
+			return true;
+		}
+		buffer.compact();
+		while (buffer.position() < size) {
+			if (channel.read(buffer) < 0) {
+				buffer.flip();
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+}
@@ -0,0 +1,98 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.log4j.Logger;
+import org.matsim.contrib.ev.fleet.MyElectricFleet;
+import org.matsim.contrib.ev.fleet.MyElectricFleetState;
+import org.matsim.core.config.Config;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Restores the {@link MyElectricFleetState} of the routing fleet from a snapshot when the fleet is first used, and
+ * writes a snapshot to {@value #FILE_NAME} in the iteration directory at the end of every iteration, so a later run can
+ * be warm-started with the state reached by this one. Bound as a singleton, like the {@link MyElectricFleet}, so this
+ * happens once per controler run.
+ * <p>
+ * Only the routing state is saved: the estimated SoCs, charge-up-to levels and parking flags. The mobsim discharges
+ * its own fleet, not the routing fleet, so the SoC column holds the initial (or restored) SoCs, not the ones reached
+ * in the simulation.
+ */
+@Singleton
+public final class FleetStateSnapshots implements IterationEndsListener {
+	private static final Logger log = Logger.getLogger(FleetStateSnapshots.class);
+
+	static final String FILE_NAME = "evFleetState.bin";
+
+	private static Path toPath(URL url) {
+		try {
+			return Paths.get(url.toURI());
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			throw new IllegalArgumentException("Fleet state snapshots must be local files: " + url, e);
+		}
+	}
+
+	private static void restore(MyElectricFleetState state, Path file) {
+		try {
+			int restored = state.readSnapshot(file);
+			log.info("Fleet state of " + restored + " of " + state.size() + " vehicles restored from " + file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private final MyElectricFleetState state;
+	private final OutputDirectoryHierarchy controlerIO;
+
+	@Inject
+	FleetStateSnapshots(MyElectricFleet fleet, Config config, ControlerListenerManager controlerListenerManager,
+			OutputDirectoryHierarchy controlerIO) {
+		MyEvRoutingConfigGroup evRoutingConfig = MyEvRoutingConfigGroup.get(config);
+		this.state = fleet.getState();
+		this.controlerIO = controlerIO;
+		if (evRoutingConfig.getFleetStateSnapshotFile() != null) {
+			restore(state, toPath(evRoutingConfig.getFleetStateSnapshotFileUrl(config.getContext())));
+		}
+		if (evRoutingConfig.isWriteFleetStateSnapshots()) {
+			controlerListenerManager.addControlerListener(this);
+		}
+	}
+
+	@Override
+	public void notifyIterationEnds(IterationEndsEvent event) {
+		try {
+			state.writeSnapshot(Paths.get(controlerIO.getIterationFilename(event.getIteration(), FILE_NAME)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of int elements in [0, capacity) with decrease-key. Backed by primitive arrays, so that graph searches
+ * over dense node (or state) indices do not allocate per push.
+ */
+final class IndexedMinHeap {
+
+	private int[] heap;
+	private int[] positions;// position in heap + 1, 0 if not contained
+	private double[] keys;
+	private int size;
+
+	IndexedMinHeap(int capacity) {
+		this.heap = new int[capacity];
+		this.positions = new int[capacity];
+		this.keys = new double[capacity];
+	}
+
+	int capacity() {
+		return heap.length;
+	}
+
+	void ensureCapacity(int capacity) {
+		if (capacity > heap.length) {
+			heap = Arrays.copyOf(heap, capacity);
+			positions = Arrays.copyOf(positions, capacity);
+			keys = Arrays.copyOf(keys, capacity);
+		}
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			positions[heap[i]] = 0;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Inserts the element or, if it is already contained with a larger key, decreases its key.
+	 *
+	 * @return true if the heap has been changed
+	 */
+	boolean insertOrDecrease(int element, double key) {
+		int position = positions[element] - 1;
+		if (position < 0) {
+			position = size++;
+		} else if (key >= keys[element]) {
+			return false;
+		}
+		keys[element] = key;
+		siftUp(position, element);
+		return true;
+	}
+
+	double peekKey() {
+		return keys[heap[0]];
+	}
+
+	int poll() {
+		int min = heap[0];
+		positions[min] = 0;
+		int last = heap[--size];
+		if (size > 0) {
+			siftDown(0, last);
+		}
+		return min;
+	}
+
+	private void siftUp(int position, int element) {
+		double key = keys[element];
+		while (position > 0) {
+			int parentPosition = (position - 1) >>> 1;
+			int parent = heap[parentPosition];
+			if (keys[parent] <= key) {
+				break;
+			}
+			place(position, parent);
+			position = parentPosition;
+		}
+		place(position, element);
+	}
+
+	private void siftDown(int position, int element) {
+		double key = keys[element];
+		int half = size >>> 1;
+		while (position < half) {
+			int childPosition = 2 * position + 1;
+			int child = heap[childPosition];
+			int rightPosition = childPosition + 1;
+			if (rightPosition < size && keys[heap[rightPosition]] < keys[child]) {
+				childPosition = rightPosition;
+				child = heap[childPosition];
+			}
+			if (key <= keys[child]) {
+				break;
+			}
+			place(position, child);
+			position = childPosition;
+		}
+		place(position, element);
+	}
+
+	private void place(int position, int element) {
+		heap[position] = element;
+		positions[element] = position + 1;
+	}
+}
@@ -0,0 +1,196 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.contrib.ev.fleet.VehicleSize;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.router.util.TravelTime;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of the (size-scaled) energy consumption of a link, indexed by (vehicle type, vehicle size, link index, time
+ * bin), together with the link travel time it was computed from. Consumptions are scaled per vehicle size, so type and
+ * size are part of the key; the vehicles of the same type and size share their values, even if their consumption
+ * models read other attributes of the vehicle (like its battery). The consumption of a link depends on the travel
+ * time, so the cache is bound to a {@link TravelTime} and invalidated at the start of every iteration.
+ * <p>
+ * The rows (one per vehicle type, vehicle size and link) are allocated lazily and filled concurrently by the routing
+ * threads. Values
+ * are stored as raw float bits, 0 marking an empty slot (+0.0 is stored as -0.0), so that a freshly allocated row
+ * needs no initialisation and a racy read can only see empty or complete values. A row holds the consumptions of all
+ * time bins followed by the travel times; the two are written separately, so a reader may see only one of them.
+ */
+public final class LinkEnergyConsumptionCache implements IterationStartsListener {
+	private static final Logger log = Logger.getLogger(LinkEnergyConsumptionCache.class);
+
+	private static final Cache<TravelTime, LinkEnergyConsumptionCache> CACHES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the cache bound to the given travel time, creating it (and registering it for invalidation) on first
+	 * access.
+	 */
+	public static LinkEnergyConsumptionCache getOrCreate(TravelTime travelTime, int timeBinSize, double maxTime,
+			ControlerListenerManager controlerListenerManager) {
+		try {
+			return CACHES.get(travelTime, () -> {
+				LinkEnergyConsumptionCache cache = new LinkEnergyConsumptionCache(timeBinSize, maxTime);
+				controlerListenerManager.addControlerListener(cache);
+				return cache;
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static final int EMPTY = 0;
+	private static final int NEGATIVE_ZERO = Float.floatToRawIntBits(-0.0f);
+	private static final int SIZE_COUNT = VehicleSize.values().length;
+
+	private final int timeBinSize;
+	private final int binCount;
+
+	// rows of a vehicle type, indexed by (link index, size); created on the first put for the type
+	private volatile ConcurrentMap<String, AtomicReferenceArray<int[]>> rowsByVehicleType = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public LinkEnergyConsumptionCache(int timeBinSize, double maxTime) {
+		this.timeBinSize = timeBinSize;
+		this.binCount = (int)(maxTime / timeBinSize) + 1;
+	}
+
+	private static AtomicReferenceArray<int[]> createRows() {
+		return new AtomicReferenceArray<>(SIZE_COUNT * Id.getNumberOfIds(Link.class));
+	}
+
+	public int getTimeBin(double time) {
+		return Math.max(0, Math.min((int)(time / timeBinSize), binCount - 1));
+	}
+
+	public double getTimeBinStart(int timeBin) {
+		return (double)timeBin * timeBinSize;
+	}
+
+	/**
+	 * @return the start of the following time bin, or infinity for the last bin (which extends to the end of the day)
+	 */
+	public double getNextTimeBinStart(int timeBin) {
+		return timeBin < binCount - 1 ? getTimeBinStart(timeBin + 1) : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the cached consumption or {@link Double#NaN} if not cached
+	 */
+	public double get(String vehicleType, VehicleSize size, Link link, int timeBin) {
+		int[] row = getRow(vehicleType, size, link);
+		if (row == null || row[timeBin] == EMPTY) {
+			misses.increment();
+			return Double.NaN;
+		}
+		hits.increment();
+		return Float.intBitsToFloat(row[timeBin]);
+	}
+
+	/**
+	 * @return the travel time the cached consumption was computed from, or {@link Double#NaN} if not cached
+	 */
+	public double getTravelTime(String vehicleType, VehicleSize size, Link link, int timeBin) {
+		int[] row = getRow(vehicleType, size, link);
+		return row == null || row[binCount + timeBin] == EMPTY ?
+				Double.NaN :
+				Float.intBitsToFloat(row[binCount + timeBin]);
+	}
+
+	public void put(String vehicleType, VehicleSize size, Link link, int timeBin, double consumption,
+			double travelTime) {
+		AtomicReferenceArray<int[]> rows = rowsByVehicleType.computeIfAbsent(vehicleType, type -> createRows());
+		int rowIndex = getRowIndex(size, link);
+		if (rowIndex >= rows.length()) {
+			return;// link created after the last invalidation
+		}
+		int[] row = rows.get(rowIndex);
+		if (row == null) {
+			rows.compareAndSet(rowIndex, null, new int[2 * binCount]);
+			row = rows.get(rowIndex);
+		}
+		row[binCount + timeBin] = toBits(travelTime);
+		row[timeBin] = toBits(consumption);
+	}
+
+	private int[] getRow(String vehicleType, VehicleSize size, Link link) {
+		AtomicReferenceArray<int[]> rows = rowsByVehicleType.get(vehicleType);
+		if (rows == null) {
+			return null;
+		}
+		int rowIndex = getRowIndex(size, link);
+		return rowIndex < rows.length() ? rows.get(rowIndex) : null;
+	}
+
+	private static int toBits(double value) {
+		int bits = Float.floatToRawIntBits((float)value);
+		return bits == EMPTY ? NEGATIVE_ZERO : bits;
+	}
+
+	private static int getRowIndex(VehicleSize size, Link link) {
+		return link.getId().index() * SIZE_COUNT + size.ordinal();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRate() {
+		long hits = getHits();
+		long lookups = hits + getMisses();
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+
+	public void invalidate() {
+		rowsByVehicleType = new ConcurrentHashMap<>();
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		log.info("Link energy consumption cache: " + getHits() + " hits, " + getMisses() + " misses (hit rate "
+				+ getHitRate() + "), time bin size " + timeBinSize + " s");
+		hits.reset();
+		misses.reset();
+		invalidate();
+	}
+}
@@ -1,40 +1,45 @@
 package org.matsim.contrib.ev.fleet;
 
+/**
+ * View on the battery state of one vehicle in a {@link MyElectricFleetState}. The estimated SoC is shared by all
+ * routing threads, so it is volatile and changed atomically.
+ */
 public class MyBatteryImpl implements Battery {
-	
-	private Battery delegate;
-	private double estimatedSoc;
 
-	public MyBatteryImpl(Battery battery){
-		this.delegate = battery;
-		this.estimatedSoc = battery.getSoc();
+	private final MyElectricFleetState state;
+	private final int index;
+
+	public MyBatteryImpl(MyElectricFleetState state, int index){
+		this.state = state;
+		this.index = index;
 	}
 
 	@Override
 	public double getCapacity() {
-		return this.delegate.getCapacity();
+		return this.state.getCapacity(index);
 	}
 
 	@Override
 	public double getSoc() {
-		return this.delegate.getSoc();
+		return this.state.getSoc(index);
 	}
 
 	@Override
 	public void setSoc(double soc) {
-		this.delegate.setSoc(soc);
+		this.state.setSoc(index, soc);
 	}
-	
+
 	public double getEstimatedSoc() {
-		return this.estimatedSoc;
+		return this.state.getEstimatedSoc(index);
 	}
-	
+
 	public double setEstimatedSoc(double estimatedSoc) {
-		return this.estimatedSoc = estimatedSoc;
+		this.state.setEstimatedSoc(index, estimatedSoc);
+		return estimatedSoc;
 	}
-	
+
 	public void changeestimatedSoc(double delta) {
-		this.estimatedSoc += delta;
+		this.state.changeEstimatedSoc(index, delta);
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+/*
+ * *********************************************************************** *
+ * project: org.matsim.*
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** *
+ */
+
+package org.matsim.contrib.ev.fleet;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.ev.charging.ChargingPower;
+import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
+import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Fleet whose vehicles are created on first access. {@link #getVehicle(Id)} creates just the requested vehicle, while
+ * {@link #getElectricVehicles()} creates all missing vehicles in parallel and keeps the complete map. The vehicles are
+ * views on the {@link MyElectricFleetState} of the fleet, which is initialised up front; its random attributes are
+ * seeded from the vehicle ids, so a vehicle is the same no matter when and by which thread it is created.
+ * <p>
+ * Bound as a singleton, so all routing modules of a controler run share one fleet, which is released together with
+ * the injector.
+ */
+@Singleton
+public final class MyElectricFleet implements ElectricFleet {
+
+	private final ElectricFleetSpecification fleetSpecification;
+	private final DriveEnergyConsumption.Factory driveConsumptionFactory;
+	private final AuxEnergyConsumption.Factory auxConsumptionFactory;
+	private final ChargingPower.Factory chargingFactory;
+	private final MyElectricFleetState state;
+
+	private final ConcurrentHashMap<Id<ElectricVehicle>, ElectricVehicle> vehicles;
+	private volatile ImmutableMap<Id<ElectricVehicle>, ElectricVehicle> allVehicles;
+
+	@Inject
+	public MyElectricFleet(ElectricFleetSpecification fleetSpecification,
+			DriveEnergyConsumption.Factory driveConsumptionFactory, AuxEnergyConsumption.Factory auxConsumptionFactory,
+			ChargingPower.Factory chargingFactory) {
+		this.fleetSpecification = fleetSpecification;
+		this.driveConsumptionFactory = driveConsumptionFactory;
+		this.auxConsumptionFactory = auxConsumptionFactory;
+		this.chargingFactory = chargingFactory;
+		this.vehicles = new ConcurrentHashMap<>(fleetSpecification.getVehicleSpecifications().size());
+		this.state = new MyElectricFleetState(fleetSpecification.getVehicleSpecifications().values());
+	}
+
+	/**
+	 * @return the state of all vehicles of the fleet, including the ones not yet created
+	 */
+	public MyElectricFleetState getState() {
+		return state;
+	}
+
+	/**
+	 * @return the vehicle, created if not yet accessed, or null if there is no such vehicle in the specification
+	 */
+	public ElectricVehicle getVehicle(Id<ElectricVehicle> id) {
+		ElectricVehicle vehicle = vehicles.get(id);
+		if (vehicle != null) {
+			return vehicle;
+		}
+		ElectricVehicleSpecification specification = fleetSpecification.getVehicleSpecifications().get(id);
+		return specification == null ? null : vehicles.computeIfAbsent(id, i -> createVehicle(specification));
+	}
+
+	/**
+	 * Creates all not yet accessed vehicles (in parallel) and returns them in the order of the specification.
+	 */
+	@Override
+	public ImmutableMap<Id<ElectricVehicle>, ElectricVehicle> getElectricVehicles() {
+		ImmutableMap<Id<ElectricVehicle>, ElectricVehicle> allVehicles = this.allVehicles;
+		if (allVehicles == null) {
+			synchronized (this) {
+				allVehicles = this.allVehicles;
+				if (allVehicles == null) {
+					fleetSpecification.getVehicleSpecifications()
+							.values()
+							.parallelStream()
+							.forEach(s -> vehicles.computeIfAbsent(s.getId(), i -> createVehicle(s)));
+					allVehicles = fleetSpecification.getVehicleSpecifications()
+							.keySet()
+							.stream()
+							.collect(ImmutableMap.toImmutableMap(id -> id, vehicles::get));
+					this.allVehicles = allVehicles;
+				}
+			}
+		}
+		return allVehicles;
+	}
+
+	/**
+	 * @return the number of vehicles created so far
+	 */
+	public int getCreatedVehicleCount() {
+		return vehicles.size();
+	}
+
+	private ElectricVehicle createVehicle(ElectricVehicleSpecification specification) {
+		return new MyElectricVehicleImpl(specification, driveConsumptionFactory, auxConsumptionFactory,
+				chargingFactory, state, state.getIndex(specification.getId()));
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * *********************************************************************** *
+ * project: org.matsim.*
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** *
+ */
+
+package org.matsim.contrib.ev.fleet;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.contrib.ev.EvUnits;
+
+/**
+ * State of all vehicles of a fleet in primitive arrays, indexed by a dense vehicle index (the position in the fleet
+ * specification). {@link MyElectricVehicleImpl} and {@link MyBatteryImpl} are views on one index, so the whole fleet
+ * can be scanned or copied without touching the vehicle objects.
+ * <p>
+ * The estimated SoC and the charge-up-to level are written by routing threads and accessed with volatile semantics
+ * (the estimated SoC is also changed atomically). The SoC is owned by the mobsim, as in the ev contrib.
+ * <p>
+ * The SoC, estimated SoC, charge-up-to level and parking flags can be written to a memory-mapped snapshot file and
+ * restored from it, column by column. The vehicle ids are stored as well, so a snapshot of a different fleet is
+ * restored per vehicle id.
+ */
+public final class MyElectricFleetState {
+
+	private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+	private static final int PRIVATE_PARKING_RATE = 11;// [%]
+	private static final int WORK_PARKING_RATE = 10;// [%]
+
+	private static final byte PRIVATE_PARKING = 1;
+	private static final byte WORK_PARKING = 2;
+
+	private static final VehicleSize[] SIZES = VehicleSize.values();
+
+	private static final int SNAPSHOT_MAGIC = 0x45564653;
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_HEADER_SIZE = 4 + 4 + 4 + 8;// magic, version, count, id fingerprint
+
+	/**
+	 * State of a single vehicle, for vehicles outside of a fleet.
+	 */
+	static MyElectricFleetState of(ElectricVehicleSpecification specification) {
+		return new MyElectricFleetState(Collections.singletonList(specification));
+	}
+
+	private final Id<ElectricVehicle>[] ids;
+	private final int[] indicesByIdIndex;// -1 if not in the fleet
+
+	private final double[] capacities;
+	private final double[] socs;
+	private final double[] estimatedSocs;
+	private final double[] chargeUpTos;
+	private final double[] chargingBehaviors;
+	private final byte[] parkings;
+	private final byte[] sizes;
+
+	private byte[][] encodedIds;// for snapshots, created on first use
+	private long idFingerprint;
+
+	@SuppressWarnings("unchecked")
+	public MyElectricFleetState(Collection<? extends ElectricVehicleSpecification> specifications) {
+		int count = specifications.size();
+		ElectricVehicleSpecification[] specificationArray = specifications.toArray(
+				new ElectricVehicleSpecification[count]);
+		ids = new Id[count];
+		int maxIdIndex = -1;
+		for (ElectricVehicleSpecification specification : specificationArray) {
+			maxIdIndex = Math.max(maxIdIndex, specification.getId().index());
+		}
+		indicesByIdIndex = new int[maxIdIndex + 1];
+		Arrays.fill(indicesByIdIndex, -1);
+		capacities = new double[count];
+		socs = new double[count];
+		estimatedSocs = new double[count];
+		chargeUpTos = new double[count];
+		chargingBehaviors = new double[count];
+		parkings = new byte[count];
+		sizes = new byte[count];
+
+		for (int i = 0; i < count; i++) {
+			ids[i] = specificationArray[i].getId();
+			indicesByIdIndex[ids[i].index()] = i;
+		}
+		// each vehicle is initialised from its own specification and id, so the order does not matter
+		IntStream.range(0, count).parallel().forEach(i -> init(i, specificationArray[i]));
+	}
+
+	private void init(int index, ElectricVehicleSpecification specification) {
+		double capacity = specification.getBatteryCapacity();
+		capacities[index] = capacity;
+		socs[index] = specification.getInitialSoc();
+		estimatedSocs[index] = specification.getInitialSoc();
+		chargeUpTos[index] = capacity;
+		sizes[index] = (byte)VehicleSize.of(capacity).ordinal();
+
+		Random r = new Random(getRandomSeed(specification.getId()));
+		chargingBehaviors[index] = EvUnits.kWh_to_J((r.nextInt(41) + 30) / 2);
+		byte parking = 0;
+		if (r.nextInt(100) <= PRIVATE_PARKING_RATE) {
+			parking |= PRIVATE_PARKING;
+		}
+		if (r.nextInt(100) <= WORK_PARKING_RATE) {
+			parking |= WORK_PARKING;
+		}
+		parkings[index] = parking;
+	}
+
+	// derived from the id only, so the attributes do not depend on the order in which the fleet is created
+	private static long getRandomSeed(Id<ElectricVehicle> id) {
+		return id.toString().hashCode() * 0x9E3779B97F4A7C15L;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return the dense index of the vehicle, or -1 if it is not in the fleet
+	 */
+	public int getIndex(Id<ElectricVehicle> id) {
+		int idIndex = id.index();
+		return idIndex < indicesByIdIndex.length ? indicesByIdIndex[idIndex] : -1;
+	}
+
+	public Id<ElectricVehicle> getId(int index) {
+		return ids[index];
+	}
+
+	public double getCapacity(int index) {
+		return capacities[index];
+	}
+
+	public double getSoc(int index) {
+		return socs[index];
+	}
+
+	public void setSoc(int index, double soc) {
+		if (soc < 0 || soc > capacities[index]) {
+			throw new IllegalArgumentException("SoC=" + soc);
+		}
+		socs[index] = soc;
+	}
+
+	public double getEstimatedSoc(int index) {
+		return (double)DOUBLES.getVolatile(estimatedSocs, index);
+	}
+
+	public void setEstimatedSoc(int index, double estimatedSoc) {
+		DOUBLES.setVolatile(estimatedSocs, index, estimatedSoc);
+	}
+
+	public void changeEstimatedSoc(int index, double delta) {
+		DOUBLES.getAndAdd(estimatedSocs, index, delta);
+	}
+
+	public double getChargeUpTo(int index) {
+		return (double)DOUBLES.getVolatile(chargeUpTos, index);
+	}
+
+	public void setChargeUpTo(int index, double chargeUpTo) {
+		DOUBLES.setVolatile(chargeUpTos, index, chargeUpTo);
+	}
+
+	public double getChargingBehavior(int index) {
+		return chargingBehaviors[index];
+	}
+
+	public boolean hasPrivateParking(int index) {
+		return (parkings[index] & PRIVATE_PARKING) != 0;
+	}
+
+	public boolean hasWorkParking(int index) {
+		return (parkings[index] & WORK_PARKING) != 0;
+	}
+
+	public VehicleSize getVehicleSize(int index) {
+		return SIZES[sizes[index]];
+	}
+
+	private synchronized void encodeIds() {
+		if (encodedIds == null) {
+			byte[][] encodedIds = new byte[ids.length][];
+			long fingerprint = ids.length;
+			for (int i = 0; i < ids.length; i++) {
+				encodedIds[i] = ids[i].toString().getBytes(StandardCharsets.UTF_8);
+				fingerprint = fingerprint * 0x9E3779B97F4A7C15L + Arrays.hashCode(encodedIds[i]);
+			}
+			this.idFingerprint = fingerprint;
+			this.encodedIds = encodedIds;
+		}
+	}
+
+	/**
+	 * Writes the SoCs, estimated SoCs, charge-up-to levels and parking flags of all vehicles to a memory-mapped file.
+	 * Must not be called while the state is changed.
+	 */
+	public void writeSnapshot(Path file) throws IOException {
+		encodeIds();
+		int count = ids.length;
+		long size = SNAPSHOT_HEADER_SIZE + 3L * Double.BYTES * count + count;
+		for (byte[] encodedId : encodedIds) {
+			size += Short.BYTES + encodedId.length;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(count).putLong(idFingerprint);
+			putDoubles(buffer, socs);
+			putDoubles(buffer, estimatedSocs);
+			putDoubles(buffer, chargeUpTos);
+			buffer.put(parkings);
+			for (byte[] encodedId : encodedIds) {
+				buffer.putShort((short)encodedId.length).put(encodedId);
+			}
+			buffer.force();
+		}
+	}
+
+	private static void putDoubles(ByteBuffer buffer, double[] values) {
+		buffer.asDoubleBuffer().put(values);
+		buffer.position(buffer.position() + values.length * Double.BYTES);
+	}
+
+	/**
+	 * Restores the state written by {@link #writeSnapshot(Path)}. If the snapshot has been written by a fleet with the
+	 * same vehicles (in the same order), the arrays are copied as a whole, otherwise vehicle by vehicle; vehicles not in
+	 * the snapshot keep their state. The levels are capped at the battery capacity. Must be called before the state is
+	 * accessed by other threads.
+	 *
+	 * @return the number of restored vehicles
+	 */
+	public int readSnapshot(Path file) throws IOException {
+		encodeIds();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < SNAPSHOT_HEADER_SIZE || buffer.getInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(file + " is not a fleet state snapshot");
+			}
+			int version = buffer.getInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported fleet state snapshot version " + version + " in " + file);
+			}
+			int count = buffer.getInt();
+			long fingerprint = buffer.getLong();
+
+			int restored;
+			if (count == ids.length && fingerprint == idFingerprint) {
+				getDoubles(buffer, socs);
+				getDoubles(buffer, estimatedSocs);
+				getDoubles(buffer, chargeUpTos);
+				buffer.get(parkings);
+				restored = count;
+			} else {
+				restored = readSnapshotById(buffer, count);
+			}
+
+			for (int i = 0; i < ids.length; i++) {
+				socs[i] = Math.max(0, Math.min(socs[i], capacities[i]));
+				estimatedSocs[i] = Math.min(estimatedSocs[i], capacities[i]);
+				chargeUpTos[i] = Math.min(chargeUpTos[i], capacities[i]);
+			}
+			return restored;
+		}
+	}
+
+	private static void getDoubles(ByteBuffer buffer, double[] values) {
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + values.length * Double.BYTES);
+	}
+
+	private int readSnapshotById(ByteBuffer buffer, int count) {
+		int columns = buffer.position();
+		buffer.position(columns + (3 * Double.BYTES + 1) * count);
+		int restored = 0;
+		for (int i = 0; i < count; i++) {
+			byte[] encodedId = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(encodedId);
+			int index = getIndex(Id.create(new String(encodedId, StandardCharsets.UTF_8), ElectricVehicle.class));
+			if (index >= 0) {
+				socs[index] = buffer.getDouble(columns + i * Double.BYTES);
+				estimatedSocs[index] = buffer.getDouble(columns + (count + i) * Double.BYTES);
+				chargeUpTos[index] = buffer.getDouble(columns + (2 * count + i) * Double.BYTES);
+				parkings[index] = buffer.get(columns + 3 * count * Double.BYTES + i);
+				restored++;
+			}
+		}
+		return restored;
+	}
+}
@@ -20,36 +20,20 @@
 
 package org.matsim.contrib.ev.fleet;
 
-import org.matsim.api.core.v01.Id;
 import org.matsim.contrib.ev.charging.ChargingPower;
 import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
 import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
 
-import com.google.common.collect.ImmutableMap;
-
 public class MyElectricFleets {
 	
-	static ElectricFleet electricFleet = null;
-	
-	public synchronized static ElectricFleet getOrCreateDefaultFleet(ElectricFleetSpecification fleetSpecification,
-			DriveEnergyConsumption.Factory driveConsumptionFactory, AuxEnergyConsumption.Factory auxConsumptionFactory,
-			ChargingPower.Factory chargingFactory) {
-		if(electricFleet == null) {
-			electricFleet = createDefaultFleet(fleetSpecification, driveConsumptionFactory, auxConsumptionFactory, chargingFactory);
-		} else {
-		}
-		return electricFleet;
-	}
-	
-	public static ElectricFleet createDefaultFleet(ElectricFleetSpecification fleetSpecification,
+	/**
+	 * Creates a new fleet. Within a controler run, inject {@link MyElectricFleet} instead, which is bound as a
+	 * singleton and so shared by all routing modules.
+	 */
+	public static MyElectricFleet createDefaultFleet(ElectricFleetSpecification fleetSpecification,
 			DriveEnergyConsumption.Factory driveConsumptionFactory, AuxEnergyConsumption.Factory auxConsumptionFactory,
 			ChargingPower.Factory chargingFactory) {
-		ImmutableMap<Id<ElectricVehicle>, ElectricVehicle> vehicles = fleetSpecification.getVehicleSpecifications()
-				.values()
-				.stream()
-				.map(s -> MyElectricVehicleImpl.create(s, driveConsumptionFactory, auxConsumptionFactory,
-						chargingFactory))
-				.collect(ImmutableMap.toImmutableMap(ElectricVehicle::getId, v -> v));
-		return () -> vehicles;
+		return new MyElectricFleet(fleetSpecification, driveConsumptionFactory, auxConsumptionFactory,
+				chargingFactory);
 	}
-}
\ No newline at end of file
+}
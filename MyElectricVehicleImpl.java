@@ -20,63 +20,46 @@
 
 package org.matsim.contrib.ev.fleet;
 
-import java.util.Random;
-
 import org.matsim.api.core.v01.Id;
-import org.matsim.contrib.ev.EvUnits;
 import org.matsim.contrib.ev.charging.ChargingPower;
 import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
 import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
 
 import com.google.common.collect.ImmutableList;
 
+/**
+ * View on one vehicle of a {@link MyElectricFleetState}; only the consumption and charging models are held per
+ * vehicle.
+ */
 public class MyElectricVehicleImpl implements ElectricVehicle {
 	
+	private final MyElectricFleetState state;
+	private final int index;
+	private final ElectricVehicleSpecification vehicleSpecification;
 	private Battery battery;
-	private ElectricVehicle delegate;
-	private final double ChargingBehavior;
-	private final boolean PrivateParking;
-	private final boolean WorkParking;
-	private int PrivateParkingRate = 11;
-	private int WorkParkingRate = 10;
-	private String VehicleSize;
-	private double ChargeUpTo;
+	private final DriveEnergyConsumption driveEnergyConsumption;
+	private final AuxEnergyConsumption auxEnergyConsumption;
+	private final ChargingPower chargingPower;
 	
 	
 	public static ElectricVehicle create(ElectricVehicleSpecification vehicleSpecification,
 			DriveEnergyConsumption.Factory driveFactory, AuxEnergyConsumption.Factory auxFactory,
 			ChargingPower.Factory chargingFactory) {
-		return new MyElectricVehicleImpl(vehicleSpecification, driveFactory, auxFactory, chargingFactory);
+		return new MyElectricVehicleImpl(vehicleSpecification, driveFactory, auxFactory, chargingFactory,
+				MyElectricFleetState.of(vehicleSpecification), 0);
 	}
 	
 	public MyElectricVehicleImpl(ElectricVehicleSpecification vehicleSpecification,
 			DriveEnergyConsumption.Factory driveFactory, AuxEnergyConsumption.Factory auxFactory,
-			ChargingPower.Factory chargingFactory) {
-		this.delegate = ElectricVehicleImpl.create(vehicleSpecification, driveFactory, auxFactory, chargingFactory);
-		this.battery = new MyBatteryImpl(delegate.getBattery());
-		Random r = new Random();
-		this.ChargeUpTo = this.battery.getCapacity();
-		this.ChargingBehavior = EvUnits.kWh_to_J((r.nextInt(41)+30)/2);
-		if(r.nextInt(100)<=PrivateParkingRate) {
-			this.PrivateParking = true;
-		}else {
-			this.PrivateParking = false;
-		}
-		if(r.nextInt(100)<=WorkParkingRate) {
-			this.WorkParking = true;
-		}else {
-			this.WorkParking = false;
-		}
-		if(this.battery.getCapacity() == 40) {
-			this.VehicleSize = "small";
-		}
-		else if(this.battery.getCapacity() == 50) {
-			this.VehicleSize = "medium";
-		}
-		else {
-			this.VehicleSize = "large";
-		}
-		//this.battery.changeSoc(EvUnits.kWh_to_J(50));
+			ChargingPower.Factory chargingFactory, MyElectricFleetState state, int index) {
+		this.vehicleSpecification = vehicleSpecification;
+		this.state = state;
+		this.index = index;
+		this.battery = new MyBatteryImpl(state, index);
+		// the models are created for this vehicle (not for a delegate), so they see the state of this vehicle
+		this.driveEnergyConsumption = driveFactory.create(this);
+		this.auxEnergyConsumption = auxFactory.create(this);
+		this.chargingPower = chargingFactory.create(this);
 	}
 		
 	
@@ -90,48 +73,51 @@ public class MyElectricVehicleImpl implements ElectricVehicle {
 	
 	@Override
 	public Id<ElectricVehicle> getId() {
-		return this.delegate.getId();
+		return this.vehicleSpecification.getId();
 	}
 	@Override
 	public DriveEnergyConsumption getDriveEnergyConsumption() {
-		return this.delegate.getDriveEnergyConsumption();
+		return this.driveEnergyConsumption;
 	}
 	@Override
 	public AuxEnergyConsumption getAuxEnergyConsumption() {
-		return this.delegate.getAuxEnergyConsumption();
+		return this.auxEnergyConsumption;
 	}
 	@Override
 	public ChargingPower getChargingPower() {
-		return this.delegate.getChargingPower();
+		return this.chargingPower;
 	}
 
 	@Override
 	public String getVehicleType() {
-		return this.delegate.getVehicleType();
+		return this.vehicleSpecification.getVehicleType();
 	}
 	@Override
 	public ImmutableList<String> getChargerTypes() {
-		return this.delegate.getChargerTypes();
+		return this.vehicleSpecification.getChargerTypes();
 	}
 	
 	public double getChargingBehavior() {
-		return this.ChargingBehavior;
+		return this.state.getChargingBehavior(index);
 	}
 	
 	public boolean getPrivateParking() {
-		return this.PrivateParking;
+		return this.state.hasPrivateParking(index);
 	}
 	
 	public boolean getWorkParking() {
-		return this.WorkParking;
+		return this.state.hasWorkParking(index);
 	}
 	public String getVehicleSize() {
-		return this.VehicleSize;
+		return this.state.getVehicleSize(index).getName();
 	}
 	public void setChargeUpTo(double ChargeUpTo) {
-		this.ChargeUpTo = ChargeUpTo;
+		this.state.setChargeUpTo(index, ChargeUpTo);
 	}
 	public double getChargeUpTo() {
-		return this.ChargeUpTo;
+		return this.state.getChargeUpTo(index);
+	}
+	public int getIndex() {
+		return this.index;
 	}
 }
\ No newline at end of file
@@ -19,15 +19,11 @@
 package org.matsim.contrib.ev.routing;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
+import javax.annotation.Nullable;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
-import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
@@ -35,34 +31,33 @@ import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
 import org.matsim.api.core.v01.population.PlanElement;
 import org.matsim.contrib.ev.EvConfigGroup;
-import org.matsim.contrib.ev.charging.ChargingPower;
 import org.matsim.contrib.ev.charging.VehicleChargingHandler;
 import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
 import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
-import org.matsim.contrib.ev.example.CONSTANT;
-import org.matsim.contrib.ev.fleet.ElectricFleet;
 import org.matsim.contrib.ev.fleet.ElectricFleetSpecification;
 import org.matsim.contrib.ev.fleet.ElectricVehicle;
 import org.matsim.contrib.ev.fleet.ElectricVehicleSpecification;
 import org.matsim.contrib.ev.fleet.MyBatteryImpl;
-import org.matsim.contrib.ev.fleet.MyElectricFleets;
-import org.matsim.contrib.ev.fleet.MyElectricVehicleImpl;
-import org.matsim.contrib.ev.infrastructure.Charger;
+import org.matsim.contrib.ev.fleet.MyElectricFleet;
+import org.matsim.contrib.ev.fleet.VehicleSize;
 import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
 import org.matsim.contrib.ev.infrastructure.ChargingInfrastructureSpecification;
-import org.matsim.contrib.util.StraightLineKnnFinder;
+import org.matsim.contrib.ev.routing.EvRoutingMetrics.Branch;
+import org.matsim.contrib.ev.routing.EvRoutingMetrics.Phase;
 import org.matsim.core.gbl.Gbl;
-import org.matsim.core.gbl.MatsimRandom;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
 import org.matsim.core.router.LinkWrapperFacility;
 import org.matsim.core.router.RoutingModule;
 import org.matsim.core.router.TripStructureUtils;
 import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.TravelTime;
+import org.matsim.facilities.ActivityFacility;
 import org.matsim.facilities.Facility;
 
 /**
@@ -75,30 +70,67 @@ import org.matsim.facilities.Facility;
 
 public final class MyEvNetworkRoutingModule implements RoutingModule {
 
+	// draws of a trip, see EvRoutingRandom
+	private static final int DRAW_PUBLIC_PLUG = 0;
+	private static final int DRAW_HOME_PLUG = 1;
+	private static final int DRAW_WORK_PLUG = 2;
+
+	// more candidates to choose from when the expected queues are taken into account
+	private static final int CHARGER_CANDIDATES = 2;
+	private static final int CHARGER_CANDIDATES_WITH_OCCUPANCY = 4;
+	private static final double BEELINE_SPEED = 25 / 3.6;// [m/s], for candidates found by straight-line distance
+	private static final double BEELINE_WALK_SPEED = 4 / 3.6;// [m/s], for destination candidates (walked)
+
 	private final String mode;
 
 	private final Network network;
 	private final RoutingModule delegate;
 	private final ElectricFleetSpecification electricFleet;
 	private final ChargingInfrastructureSpecification chargingInfrastructureSpecification;
-	private final Random random = MatsimRandom.getLocalInstance();
+	private final EvRoutingRandom random;
 	private final TravelTime travelTime;
-	private final DriveEnergyConsumption.Factory driveConsumptionFactory;
-	private final AuxEnergyConsumption.Factory auxConsumptionFactory;
 	private final String stageActivityModePrefix;
 	private final String vehicleSuffix;
 	private final EvConfigGroup evConfigGroup;
 	private final RoutingModule walkRouter;
 	private final RoutingModule fastwalk;
+	private final ChargerSpatialIndex chargerIndex;
+	private final ChargerSpatialIndex.Neighbours nearestChargers;
+	private boolean nearestChargersByTravelTime;// otherwise by squared straight-line distance
+	private final EnergyConsumptionEstimator consumptionEstimator;
+	private final ChargerCandidateSearch chargerSearch;
+	private final EnergyConstrainedPathCalculator constrainedPathCalculator;
+	private final PlanTripIndex tripIndex = new PlanTripIndex();
+	private final ChargingZones chargingZones;
+	private final RouteCache routeCache;
+	private final int socBuckets;// of the route cache keys
+	private final ChargerWalkTable walkTable;
+	private final EvRoutingMetrics metrics;
+	private final PlugProbabilityCurves plugCurves;
+	private final ChargerOccupancyLedger occupancyLedger;
+	private final EvTripTrace trace;
+	private EvRoutingMetrics.Recorder recorder;// of the current thread, while routing a trip
+	private Branch lastBranch;
+
+	// traced values of the current trip, the vehicle is null if the trip is not traced
+	private ElectricVehicle tracedVehicle;
+	private double tracedSocBefore;
+	private ChargerSpecification tracedCharger;// of the last charging stop, if known
 
 	//NEW
-	private ElectricFleet fleet;
+	private final MyElectricFleet fleet;
 
 	public MyEvNetworkRoutingModule(final String mode, final Network network, RoutingModule delegate,
 			ElectricFleetSpecification electricFleet,
 			ChargingInfrastructureSpecification chargingInfrastructureSpecification, TravelTime travelTime,
 			DriveEnergyConsumption.Factory driveConsumptionFactory, AuxEnergyConsumption.Factory auxConsumptionFactory,
-			EvConfigGroup evConfigGroup, ChargingPower.Factory chargingFactory, RoutingModule walkRouter, RoutingModule fastwalk) {
+			EvConfigGroup evConfigGroup, RoutingModule walkRouter, RoutingModule fastwalk,
+			ChargerSpatialIndex chargerIndex, @Nullable ChargerCandidateSearch chargerSearch, MyElectricFleet fleet,
+			@Nullable LinkEnergyConsumptionCache consumptionCache,
+			@Nullable EnergyConstrainedPathCalculator constrainedPathCalculator, ChargingZones chargingZones,
+			@Nullable RouteCache routeCache, int socBuckets, @Nullable ChargerWalkTable walkTable,
+			EvRoutingRandom random, @Nullable EvRoutingMetrics metrics, PlugProbabilityCurves plugCurves,
+			@Nullable ChargerOccupancyLedger occupancyLedger, @Nullable EvTripTrace trace) {
 		this.walkRouter = walkRouter;
 		this.fastwalk = fastwalk;
 		this.travelTime = travelTime;
@@ -108,88 +140,122 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 		this.mode = mode;
 		this.electricFleet = electricFleet;
 		this.chargingInfrastructureSpecification = chargingInfrastructureSpecification;
-		this.driveConsumptionFactory = driveConsumptionFactory;
-		this.auxConsumptionFactory = auxConsumptionFactory;
+		this.chargerIndex = chargerIndex;
+		this.chargerSearch = chargerSearch;
+		this.chargingZones = chargingZones;
+		this.routeCache = routeCache;
+		this.socBuckets = socBuckets;
+		this.walkTable = walkTable;
+		this.random = random;
+		this.metrics = metrics;
+		this.plugCurves = plugCurves;
+		this.occupancyLedger = occupancyLedger;
+		this.trace = trace;
+		this.nearestChargers = new ChargerSpatialIndex.Neighbours(
+				occupancyLedger == null ? CHARGER_CANDIDATES : CHARGER_CANDIDATES_WITH_OCCUPANCY);
+		this.constrainedPathCalculator = constrainedPathCalculator;
+		this.consumptionEstimator = new EnergyConsumptionEstimator(network, travelTime, driveConsumptionFactory,
+				auxConsumptionFactory, consumptionCache);
 		stageActivityModePrefix = mode + VehicleChargingHandler.CHARGING_IDENTIFIER;
 		this.evConfigGroup = evConfigGroup;
 		this.vehicleSuffix = mode.equals(TransportMode.car) ? "" : "_" + mode;
 		
 		//NEW
-		this.fleet = MyElectricFleets.createDefaultFleet(electricFleet,driveConsumptionFactory,  auxConsumptionFactory, chargingFactory);
+		this.fleet = fleet;
 	}
 
 	@Override
 	public List<? extends PlanElement> calcRoute(final Facility fromFacility, final Facility toFacility,
 			final double departureTime, final Person person) {
+		List<? extends PlanElement> route;
+		if (metrics == null) {
+			route = routeTrip(fromFacility, toFacility, departureTime, person);
+		} else {
+			recorder = metrics.getRecorder();
+			long start = System.nanoTime();
+			route = routeTrip(fromFacility, toFacility, departureTime, person);
+			recorder.recordTrip(lastBranch, System.nanoTime() - start);
+		}
+		if (occupancyLedger != null) {
+			reservePublicCharging(route);
+		}
+		if (tracedVehicle != null) {
+			traceTrip(person, departureTime, route);
+		}
+		return route;
+	}
+
+	private void traceTrip(Person person, double departureTime, List<? extends PlanElement> route) {
+		double chargingDuration = 0;
+		double walkTime = 0;
+		Id<Link> chargerLinkId = null;
+		for (PlanElement planElement : route) {
+			if (planElement instanceof Leg) {
+				Leg leg = (Leg)planElement;
+				if (!leg.getMode().equals(mode)) {
+					walkTime += leg.getTravelTime();
+				}
+			} else {
+				Activity activity = (Activity)planElement;
+				if (activity.getType().contains(VehicleChargingHandler.CHARGING_IDENTIFIER)
+						&& activity.getMaximumDuration().isDefined()) {
+					chargingDuration += activity.getMaximumDuration().seconds();
+					chargerLinkId = activity.getLinkId();
+				}
+			}
+		}
+		trace.getRing()
+				.append(trace.getIteration(), person.getId(), departureTime, tracedSocBefore,
+						tracedVehicle.getBattery().getEstimatedSoc(), lastBranch,
+						tracedCharger == null ? null : tracedCharger.getId(), chargerLinkId, chargingDuration,
+						walkTime);
+	}
+
+	// counts the public charging activities of the route in the occupancy ledger
+	private void reservePublicCharging(List<? extends PlanElement> route) {
+		double time = Double.NaN;
+		for (PlanElement planElement : route) {
+			if (planElement instanceof Leg) {
+				Leg leg = (Leg)planElement;
+				time = leg.getDepartureTime() + leg.getTravelTime();
+			} else {
+				Activity activity = (Activity)planElement;
+				if (activity.getMaximumDuration().isDefined()) {
+					double duration = activity.getMaximumDuration().seconds();
+					if (activity.getType().startsWith(stageActivityModePrefix)) {
+						occupancyLedger.reserve(activity.getLinkId(), time, duration);
+					}
+					time += duration;
+				}
+			}
+		}
+	}
+
+	private List<? extends PlanElement> routeTrip(final Facility fromFacility, final Facility toFacility,
+			final double departureTime, final Person person) {
 
-		List<? extends PlanElement> basicRoute = delegate.calcRoute(fromFacility, toFacility, departureTime, person);
+		tracedVehicle = null;
+		tracedCharger = null;
 		Id<ElectricVehicle> evId = Id.create(person.getId() + vehicleSuffix, ElectricVehicle.class);
 		
 		//NEW
-		Activity findAct = null;
-		Activity firstAct = (Activity) person.getSelectedPlan().getPlanElements().get(0);
-		//Leg	findLeg = null;
-		Class<? extends PlanElement> cls = null;
-		boolean walkLeg = false;
-		Leg	findwalkLeg = null;
-		double lastDeparture = 0;
+		Plan plan = person.getSelectedPlan();
+		Activity firstAct = (Activity) plan.getPlanElements().get(0);
 		//person.getAttributes().getAttribute("subpopulation").toString().contains("ElectricSubpopulation");
 		if (!electricFleet.getVehicleSpecifications().containsKey(evId)) {
-			return basicRoute;
+			return branch(Branch.NON_EV, routeBaseLeg(fromFacility, toFacility, departureTime, person));
 		} else {
-			boolean lastDepartureInfinity = false;
-			boolean flag = false;
-			int PlanSize = person.getSelectedPlan().getPlanElements().size();
-			int i = 0;
-			//for (PlanElement planElement : person.getSelectedPlan().getPlanElements()) {
-			for (i = 0; i <= PlanSize;i++){
-				//if(i == PlanSize - 1) {
-					//findAct = (Activity) person.getSelectedPlan().getPlanElements().get(i);
-					//lastDepartureInfinity = true;
-					//break;
-				//}
-				cls = person.getSelectedPlan().getPlanElements().get(i).getClass();
-				//cls = planElement.getClass();
-				if (cls.getName() == "org.matsim.core.population.ActivityImpl") {
-					findAct = (Activity) person.getSelectedPlan().getPlanElements().get(i);
-					//findAct = (Activity) planElement;
-					if(flag == true) {
-						if (findAct.getEndTime().toString()=="OptionalTime[UNDEFINED]" || i == PlanSize-1){
-							lastDepartureInfinity = true;
-							break;
-						}
-						else {
-							lastDeparture = findAct.getEndTime().seconds();
-							break;
-						}
-					}
-					if (findAct.getEndTime().toString()!="OptionalTime[UNDEFINED]"){
-						if (findAct.getEndTime().seconds() == departureTime) {
-							//findAct = (Activity) person.getSelectedPlan().getPlanElements().get(i+2);
-							flag = true;
-							//if (findAct.getEndTime().toString()!="OptionalTime[UNDEFINED]"){
-								//lastDeparture = findAct.getEndTime().seconds();
-								//break;
-							//}
-						}
-					}
-				}
+			tripIndex.index(plan);// the plan may have changed since the last call
+			int trip = tripIndex.findTrip(departureTime);
+			if (trip == PlanTripIndex.NOT_FOUND) {
+				return branch(Branch.NON_EV, routeBaseLeg(fromFacility, toFacility, departureTime, person));
 			}
-			if (i >=4) {
-				cls = person.getSelectedPlan().getPlanElements().get(i-3).getClass();
-				if (cls.getName() == "org.matsim.core.population.LegImpl") {
-					findwalkLeg =(Leg) person.getSelectedPlan().getPlanElements().get(i-3);
-					if (findwalkLeg.getMode().contains("walk")) {
-						walkLeg = true;
-					}
-				}
-			}
-			if (walkLeg == true) {
+			Activity findAct = tripIndex.getDestinationActivity(trip);
+			Leg findwalkLeg = tripIndex.getAccessWalkLeg(trip);
+			if (findwalkLeg != null) {
 				List<PlanElement> stagedRoute = new ArrayList<>();
 				Link startlink = network.getLinks().get(findwalkLeg.getRoute().getStartLinkId());
-				Link endlink = network.getLinks().get(findwalkLeg.getRoute().getEndLinkId());
 				Facility startFacility = new LinkWrapperFacility(startlink);
-				Facility endFacility = new LinkWrapperFacility(endlink);
 				List<? extends PlanElement> routeSegment = null;
 				if (findwalkLeg.getMode().contains("fast")){
 					routeSegment = fastwalk.calcRoute(fromFacility, startFacility, departureTime, person);
@@ -197,90 +263,67 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					routeSegment = walkRouter.calcRoute(fromFacility, startFacility, departureTime, person);
 				}
 				Leg createLeg = (Leg) routeSegment.get(0);
-				//createLeg.setTravelTime(findwalkLeg.getTravelTime());
 				stagedRoute.add(createLeg);
-				//createLeg.setMode("fast_walk");
-				//stagedRoute.addAll(walkRouter.calcRoute(endFacility, startFacility, departureTime, person));
-				//List<? extends PlanElement> routeSegment0 = walkRouter.calcRoute(endFacility, startFacility, departureTime, person);
-				//Leg legtime = (Leg) routeSegment0.get(0);
-				//legtime.setTravelTime(findwalkLeg.getTravelTime());
-				//stagedRoute.add(legtime);
 				Activity carInteraction = PopulationUtils.createStageActivityFromCoordLinkIdAndModePrefix(startlink.getCoord(),
 						startlink.getId(), "car");
 				stagedRoute.add(carInteraction);
-				stagedRoute.addAll(delegate.calcRoute(startFacility, toFacility, departureTime + findwalkLeg.getTravelTime(), person));
-				return stagedRoute;
+				stagedRoute.addAll(calcNetworkLeg(startFacility, toFacility, departureTime + findwalkLeg.getTravelTime(), person));
+				return branch(Branch.WALK_ACCESS, stagedRoute);
 			}
-//				cls = person.getSelectedPlan().getPlanElements().get(i).getClass();
-//				if (cls.getName() == "org.matsim.core.population.ActivityImpl") {
-//					findAct = (Activity) person.getSelectedPlan().getPlanElements().get(i);
-//					if (findAct.getEndTime().seconds() == departureTime) {
-//						cls = person.getSelectedPlan().getPlanElements().get(i+1).getClass();
-//						if (cls.getName() == "org.matsim.core.population.ActivityImpl") {
-//							findAct = (Activity) person.getSelectedPlan().getPlanElements().get(i+1);
-//							lastDeparture = findAct.getEndTime().seconds();
-//						}
-//						else {
-//							findLeg = (Leg) person.getSelectedPlan().getPlanElements().get(i+1);
-//							lastDeparture = findLeg.getDepartureTime();
-//						}
-//						break;
-//					}
-//				}
-//				else {
-//					findLeg = (Leg) person.getSelectedPlan().getPlanElements().get(i);
-//					if (findLeg.getDepartureTime() == departureTime) {
-//						cls = person.getSelectedPlan().getPlanElements().get(i+1).getClass();
-//						if (cls.getName() == "org.matsim.core.population.ActivityImpl") {
-//							findAct = (Activity) person.getSelectedPlan().getPlanElements().get(i+1);
-//							lastDeparture = findAct.getEndTime().seconds();
-//						}
-//						else {
-//							findLeg = (Leg) person.getSelectedPlan().getPlanElements().get(i+1);
-//							lastDeparture = findLeg.getDepartureTime();
-//						}
-//						break;
-//					}
-//				
-			//findAct.getCoord().
-			ElectricVehicle vehicle = fleet.getElectricVehicles().get(evId);
+			ElectricVehicle vehicle = fleet.getVehicle(evId);
 			if (departureTime == firstAct.getEndTime().seconds()) {
 				vehicle.getBattery().setEstimatedSoc(vehicle.getBattery().getSoc());
 			}
+			if (trace != null) {
+				tracedVehicle = vehicle;
+				tracedSocBefore = vehicle.getBattery().getEstimatedSoc();
+			}
 			MyBatteryImpl battery = (MyBatteryImpl) vehicle.getBattery();
-			Leg basicLeg = (Leg)basicRoute.get(0);
 			ElectricVehicleSpecification ev = electricFleet.getVehicleSpecifications().get(evId);
-			Map<Link, Double> estimatedEnergyConsumption = estimateConsumption(electricFleet.getVehicleSpecifications().get(evId), basicLeg);
-			double estimatedOverallConsumption = estimatedEnergyConsumption.values()
-					.stream()
-					.mapToDouble(Number::doubleValue)
-					.sum();
 			double estimatedSoc = battery.getEstimatedSoc();
-			Integer key = 0;
-			Integer value = 0;
+			// en-route charging routes of this vehicle are reused before routing anything
+			RouteCache.Key cacheKey = null;
+			if (routeCache != null && !chargingZones.isInside(findAct)) {
+				cacheKey = createEnRouteKey(evId, fromFacility, toFacility, departureTime, estimatedSoc, ev);
+				List<PlanElement> cachedRoute = getCachedEnRouteRoute(cacheKey, departureTime, vehicle);
+				if (cachedRoute != null) {
+					return branch(Branch.EN_ROUTE, cachedRoute);
+				}
+			}
+
+			List<? extends PlanElement> basicRoute = routeBaseLeg(fromFacility, toFacility, departureTime, person);
+			Leg basicLeg = (Leg)basicRoute.get(0);
+			long chargerTypeMask = chargerIndex.getChargerTypeMask(ev);
+			NetworkRoute basicNetworkRoute = (NetworkRoute)basicLeg.getRoute();
+			long start = startPhase();
+			double estimatedOverallConsumption = consumptionEstimator.estimate(ev, basicNetworkRoute,
+					basicLeg.getDepartureTime());
+			endPhase(Phase.CONSUMPTION_ESTIMATE, start);
 			//double ChargingBehavior = vehicle.getChargingBehavior();
 			//double capacity = ev.getBatteryCapacity() * (0.8 + random.nextDouble() * 0.18);
 			double numberOfStops = Math.floor(estimatedOverallConsumption/estimatedSoc);
 			double socRate = (estimatedSoc/vehicle.getBattery().getCapacity())*100;
-			Random r = new Random();
-			for (Map.Entry<Integer, Integer> entry : CONSTANT.PublicPlugRate.entrySet()) {
-			    key = entry.getKey();
-			    value = entry.getValue();
-			    if(socRate <= key) {
-			    	break;
-			    }
-			}
-			if (numberOfStops < 1 && r.nextDouble()*100 > value) {
-				return basicRoute;
+			VehicleSize size = VehicleSize.of(ev.getBatteryCapacity());
+			double value = plugCurves.getProbability(PlugProbabilityCurves.Location.PUBLIC, size, socRate);
+			if (numberOfStops < 1 && random.nextDouble(person.getId(), trip, DRAW_PUBLIC_PLUG)*100 > value) {
+				return branch(Branch.NO_CHARGING, basicRoute);
 			} else if(numberOfStops > 1){
-				if (isCoordInsidePolygon(findAct.getCoord(),getVertices()) == false) {
+				if (!chargingZones.isInside(findAct)) {
+					if (constrainedPathCalculator != null) {
+						List<PlanElement> stagedRoute = calcEnergyConstrainedRoute(fromFacility, toFacility,
+								departureTime, estimatedSoc, ev, vehicle);
+						if (stagedRoute != null) {
+							cacheEnRouteRoute(cacheKey, stagedRoute, departureTime, vehicle);
+							return branch(Branch.EN_ROUTE, stagedRoute);
+						}
+					}
 					List<Link> stopLocations = new ArrayList<>();
-					double currentConsumption = 0;
-					for (Map.Entry<Link, Double> e : estimatedEnergyConsumption.entrySet()) {
-						currentConsumption += e.getValue();
-						if (currentConsumption > estimatedSoc) {
-							stopLocations.add(e.getKey());
-							currentConsumption = 0;
+					double consumptionAtLastStop = 0;
+					for (int l = 0; l < consumptionEstimator.getLinkCount(); l++) {
+						double currentConsumption = consumptionEstimator.getCumulativeConsumption(l);
+						if (currentConsumption - consumptionAtLastStop > estimatedSoc) {
+							stopLocations.add(network.getLinks().get(consumptionEstimator.getLinkId(l)));
+							consumptionAtLastStop = currentConsumption;
 						}
 					}
 					List<PlanElement> stagedRoute = new ArrayList<>();
@@ -288,20 +331,16 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					double lastArrivaltime = departureTime;
 					for (Link stopLocation : stopLocations) {
 	
-						StraightLineKnnFinder<Link, ChargerSpecification> straightLineKnnFinder = new StraightLineKnnFinder<>(
-								2, l -> l, s -> network.getLinks().get(s.getLinkId()));
-						List<ChargerSpecification> nearestChargers = straightLineKnnFinder.findNearest(stopLocation,
-								chargingInfrastructureSpecification.getChargerSpecifications()
-										.values()
-										.stream()
-										.filter(charger -> charger.getId().toString().length() < 10));
-						ChargerSpecification selectedCharger = nearestChargers.get(random.nextInt(1));
-						Link selectedChargerLink = network.getLinks().get(selectedCharger.getLinkId());
+						findChargers(stopLocation, lastArrivaltime, chargerTypeMask);
+						int selected = selectCharger(lastArrivaltime, false);
+						ChargerSpecification selectedCharger = nearestChargers.getCharger(selected);
+						Link selectedChargerLink = nearestChargers.getLink(selected);
 						Facility nexttoFacility = new LinkWrapperFacility(selectedChargerLink);
 						if (nexttoFacility.getLinkId().equals(lastFrom.getLinkId())) {
 							continue;
 						}
-						List<? extends PlanElement> routeSegment = delegate.calcRoute(lastFrom, nexttoFacility,
+						tracedCharger = selectedCharger;
+						List<? extends PlanElement> routeSegment = calcNetworkLeg(lastFrom, nexttoFacility,
 								lastArrivaltime, person);
 						Leg lastLeg = (Leg)routeSegment.get(0);
 						lastArrivaltime = lastLeg.getDepartureTime() + lastLeg.getTravelTime();
@@ -318,35 +357,28 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 						stagedRoute.add(chargeAct);
 						lastFrom = nexttoFacility;
 					}
-					stagedRoute.addAll(delegate.calcRoute(lastFrom, toFacility, lastArrivaltime, person));
+					stagedRoute.addAll(calcNetworkLeg(lastFrom, toFacility, lastArrivaltime, person));
+					cacheEnRouteRoute(cacheKey, stagedRoute, departureTime, vehicle);
 					//battery.setSoc(battery.getSoc()-estimatedOverallConsumption);
-					return stagedRoute;
+					return branch(Branch.EN_ROUTE, stagedRoute);
 				}else{
 					List<PlanElement> stagedRoute = new ArrayList<>();
 					Facility lastFrom = fromFacility;
 					double lastArrivaltime = departureTime;
 					Link toFacilityLink = network.getLinks().get(toFacility.getLinkId());
-					StraightLineKnnFinder<Link, ChargerSpecification> straightLineKnnFinder = new StraightLineKnnFinder<>(
-							2, l -> l, s -> network.getLinks().get(s.getLinkId()));
-//					List<ChargerSpecification> nearestChargers = straightLineKnnFinder.findNearest(toFacilityLink,
-//							chargingInfrastructureSpecification.getChargerSpecifications()
-//									.values()
-//									.stream()
-//									.filter(charger -> ev.getChargerTypes().contains(charger.getChargerType())));
-					List<ChargerSpecification> nearestChargers = straightLineKnnFinder.findNearest(toFacilityLink,
-							chargingInfrastructureSpecification.getChargerSpecifications()
-									.values()
-									.stream()
-									.filter(charger -> charger.getId().toString().length() < 10));
+					// the agent walks from the charger to the destination, so the closest chargers are candidates
+					double expectedArrivalTime = basicLeg.getDepartureTime() + basicLeg.getTravelTime();
+					findDestinationChargers(toFacilityLink, chargerTypeMask);
 					// Select closest charger = no stohasticity
-					ChargerSpecification selectedCharger = nearestChargers.get(0);
-					//ChargerSpecification selectedCharger = nearestChargers.get(random.nextInt(1));
-					Link selectedChargerLink = network.getLinks().get(selectedCharger.getLinkId());
+					int selected = selectCharger(expectedArrivalTime, true);
+					ChargerSpecification selectedCharger = nearestChargers.getCharger(selected);
+					Link selectedChargerLink = nearestChargers.getLink(selected);
 					Facility nexttoFacility = new LinkWrapperFacility(selectedChargerLink);
+					tracedCharger = selectedCharger;
 					//if (nexttoFacility.getLinkId().equals(lastFrom.getLinkId())) {
 					//	continue;
 					//}
-					List<? extends PlanElement> routeSegment = delegate.calcRoute(lastFrom, nexttoFacility,
+					List<? extends PlanElement> routeSegment = calcNetworkLeg(lastFrom, nexttoFacility,
 							lastArrivaltime, person);
 					Leg lastLeg = (Leg)routeSegment.get(0);
 					lastArrivaltime = lastLeg.getDepartureTime() + lastLeg.getTravelTime();
@@ -357,14 +389,13 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					double afterConsumptionSoc = battery.getSoc()-estimatedOverallConsumption;
 					
 					lastFrom = nexttoFacility;
-					List<? extends PlanElement> routeSegment1 = walkRouter.calcRoute(lastFrom, toFacility, lastArrivaltime, person);
-					Leg lastLeg1 = (Leg)routeSegment1.get(0);
+					Leg lastLeg1 = calcWalkLeg(false, selectedChargerLink, toFacility, lastArrivaltime, person);
 					//stagedRoute.add(lastLeg1);
 					double walkingtime =  lastLeg1.getTravelTime();
 					//stagedRoute.addAll(walkRouter.calcRoute(lastFrom, toFacility, lastArrivaltime, person));
 					double maxChargingTime = 0;
 					double actduration = 0;
-					if (findAct.getEndTime().toString()=="OptionalTime[UNDEFINED]") {
+					if (findAct.getEndTime().isUndefined()) {
 						findAct.setEndTime(3600*24);
 						actduration	= findAct.getEndTime().seconds() - lastArrivaltime;
 						maxChargingTime = Math.min(actduration+walkingtime,evConfigGroup.getMaximumChargeTime());
@@ -383,37 +414,29 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					}
 					double estimatedChargingTime = (estimatedChargingPower)*1.5 / maxPowerEstimate;
 					if(estimatedChargingTime < evConfigGroup.getMinimumChargeTime()) {
-						return basicRoute;
+						return branch(Branch.BELOW_MINIMUM_CHARGE_TIME, basicRoute);
 					}
 					chargeAct.setMaximumDuration(estimatedChargingTime);
 					stagedRoute.add(chargeAct);
 					stagedRoute.add(lastLeg1);
-					return stagedRoute;
+					return branch(Branch.DESTINATION_PUBLIC, stagedRoute);
 				}
 
 			}
 			else {
-				Id<Charger> charIdHome = Id.create(person.getId() + "home", Charger.class);
-				Id<Charger> charIdWork = Id.create(person.getId() + "work", Charger.class);
-				ChargerSpecification homeCharger =  chargingInfrastructureSpecification.getChargerSpecifications().get(charIdHome);
-				ChargerSpecification workCharger =  chargingInfrastructureSpecification.getChargerSpecifications().get(charIdWork);
-				Integer homekey = 0;
-				Integer homevalue = 0;
-				if(chargingInfrastructureSpecification.getChargerSpecifications().containsKey(charIdHome) && findAct.getType()=="home") {
-					for (Map.Entry<Integer, Integer> entry : CONSTANT.HomePlugRate.entrySet()) {
-					    homekey = entry.getKey();
-					    homevalue = entry.getValue();
-					    if(socRate <= homekey) {
-					    	break;
-					    }
-					}
-			    	if(r.nextDouble()*100 <= homevalue) {
+				ChargerSpecification homeCharger = chargerIndex.getHomeCharger(person.getId());
+				ChargerSpecification workCharger = chargerIndex.getWorkCharger(person.getId());
+				if(homeCharger != null && findAct.getType()=="home") {
+					double homevalue = plugCurves.getProbability(PlugProbabilityCurves.Location.HOME, size,
+							socRate);
+			    	if(random.nextDouble(person.getId(), trip, DRAW_HOME_PLUG)*100 <= homevalue) {
 			    		List<PlanElement> stagedRoute = new ArrayList<>();
 						double lastArrivaltime = departureTime;
 						Facility lastFrom = fromFacility;
 						Link selectedChargerLink = network.getLinks().get(homeCharger.getLinkId());
+						tracedCharger = homeCharger;
 						Facility HomeChargingFacility = new LinkWrapperFacility(selectedChargerLink);
-						List<? extends PlanElement> routeSegment = delegate.calcRoute(lastFrom, HomeChargingFacility,
+						List<? extends PlanElement> routeSegment = calcNetworkLeg(lastFrom, HomeChargingFacility,
 								lastArrivaltime, person);
 						Leg lastLeg = (Leg)routeSegment.get(0);
 						stagedRoute.add(lastLeg);
@@ -423,14 +446,13 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 						double maxPowerEstimate = Math.min(homeCharger.getPlugPower(), ev.getBatteryCapacity()*0.2 / 3.6);
 						double afterConsumptionSoc = battery.getSoc()-estimatedOverallConsumption;
 						lastFrom = HomeChargingFacility;
-						List<? extends PlanElement> routeSegment1 = fastwalk.calcRoute(HomeChargingFacility, toFacility, lastArrivaltime, person);
-						Leg lastLeg1 = (Leg)routeSegment1.get(0);
+						Leg lastLeg1 = calcWalkLeg(true, selectedChargerLink, toFacility, lastArrivaltime, person);
 						//stagedRoute.add(lastLeg1);
 						//double walkingtime =  lastLeg1.getTravelTime();
 						
 						double maxChargingTime = 0;
 						double actduration = 0;
-						if (findAct.getEndTime().toString()=="OptionalTime[UNDEFINED]") {
+						if (findAct.getEndTime().isUndefined()) {
 							findAct.setEndTime(3600*30);
 							actduration	= findAct.getEndTime().seconds()- lastArrivaltime;
 							maxChargingTime = actduration;
@@ -455,29 +477,23 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 						stagedRoute.add(homeChargeAct);
 						stagedRoute.add(lastLeg1);
 						vehicle.setChargeUpTo(ev.getBatteryCapacity());
-						return stagedRoute;
+						return branch(Branch.HOME, stagedRoute);
 			    	}else {
-			    		return basicRoute;
+			    		return branch(Branch.NO_CHARGING, basicRoute);
 			    	}
 					 
 					
-				}else if (chargingInfrastructureSpecification.getChargerSpecifications().containsKey(charIdWork) && findAct.getType()=="work") {
-					Integer workkey = 0;
-				    Integer workvalue = 0;
-					for (Map.Entry<Integer, Integer> entry : CONSTANT.WorkPlugRate.entrySet()) {
-					    workkey = entry.getKey();
-					    workvalue = entry.getValue();
-					    if(socRate <= workkey) {
-					    	break;
-					    }
-					}   
-			    	if(r.nextDouble()*100 <= workvalue) {
+				}else if (workCharger != null && findAct.getType()=="work") {
+					double workvalue = plugCurves.getProbability(PlugProbabilityCurves.Location.WORK, size,
+							socRate);
+			    	if(random.nextDouble(person.getId(), trip, DRAW_WORK_PLUG)*100 <= workvalue) {
 			    		List<PlanElement> stagedRoute = new ArrayList<>();
 						double lastArrivaltime = departureTime;
 						Facility lastFrom = fromFacility;
 						Link selectedChargerLink = network.getLinks().get(workCharger.getLinkId());
+						tracedCharger = workCharger;
 						Facility WorkChargingFacility = new LinkWrapperFacility(selectedChargerLink);
-						List<? extends PlanElement> routeSegment = delegate.calcRoute(lastFrom, WorkChargingFacility,
+						List<? extends PlanElement> routeSegment = calcNetworkLeg(lastFrom, WorkChargingFacility,
 								lastArrivaltime, person);
 						Leg lastLeg = (Leg)routeSegment.get(0);
 						stagedRoute.add(lastLeg);
@@ -487,14 +503,13 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 						double maxPowerEstimate = Math.min(workCharger.getPlugPower(), ev.getBatteryCapacity()*0.2 / 3.6);
 						double afterConsumptionSoc = battery.getSoc()-estimatedOverallConsumption;
 						lastFrom = WorkChargingFacility;
-						List<? extends PlanElement> routeSegment1 = fastwalk.calcRoute(WorkChargingFacility, toFacility, lastArrivaltime, person);
-						Leg lastLeg1 = (Leg)routeSegment1.get(0);
+						Leg lastLeg1 = calcWalkLeg(true, selectedChargerLink, toFacility, lastArrivaltime, person);
 						//stagedRoute.add(lastLeg1);
 						//double walkingtime =  lastLeg1.getTravelTime();
 						
 						double maxChargingTime = 0;
 						double actduration = 0;
-						if (findAct.getEndTime().toString()=="OptionalTime[UNDEFINED]") {
+						if (findAct.getEndTime().isUndefined()) {
 							findAct.setEndTime(3600*30);
 							actduration	= findAct.getEndTime().seconds() - lastArrivaltime;
 							maxChargingTime = actduration;
@@ -520,17 +535,17 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 						stagedRoute.add(lastLeg1);
 						//vehicle.setChargeUpTo(ev.getBatteryCapacity());
 						//vehicle.setChargeUpTo(ev.getBatteryCapacity());
-						return stagedRoute;
+						return branch(Branch.WORK, stagedRoute);
 						
 					}else {
-						return basicRoute;
+						return branch(Branch.NO_CHARGING, basicRoute);
 					}
 					
 					
 //				if((vehicle.getWorkParking() && findAct.getType()=="work") || vehicle.getPrivateParking() && findAct.getType()=="home") {
 //					return basicRoute;
-				}else if (isCoordInsidePolygon(findAct.getCoord(),getVertices()) == false) {
-					return basicRoute;
+				}else if (!chargingZones.isInside(findAct)) {
+					return branch(Branch.NO_CHARGING, basicRoute);
 				}
 				
 				
@@ -539,27 +554,19 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					Facility lastFrom = fromFacility;
 					double lastArrivaltime = departureTime;
 					Link toFacilityLink = network.getLinks().get(toFacility.getLinkId());
-					StraightLineKnnFinder<Link, ChargerSpecification> straightLineKnnFinder = new StraightLineKnnFinder<>(
-							2, l -> l, s -> network.getLinks().get(s.getLinkId()));
-//					List<ChargerSpecification> nearestChargers = straightLineKnnFinder.findNearest(toFacilityLink,
-//							chargingInfrastructureSpecification.getChargerSpecifications()
-//									.values()
-//									.stream()
-//									.filter(charger -> ev.getChargerTypes().contains(charger.getChargerType())));
-					List<ChargerSpecification> nearestChargers = straightLineKnnFinder.findNearest(toFacilityLink,
-							chargingInfrastructureSpecification.getChargerSpecifications()
-									.values()
-									.stream()
-									.filter(charger -> charger.getId().toString().length() < 10));
+					// the agent walks from the charger to the destination, so the closest chargers are candidates
+					double expectedArrivalTime = basicLeg.getDepartureTime() + basicLeg.getTravelTime();
+					findDestinationChargers(toFacilityLink, chargerTypeMask);
 					// Select closest charger = no stohasticity
-					ChargerSpecification selectedCharger = nearestChargers.get(0);
-					//ChargerSpecification selectedCharger = nearestChargers.get(random.nextInt(1));
-					Link selectedChargerLink = network.getLinks().get(selectedCharger.getLinkId());
+					int selected = selectCharger(expectedArrivalTime, true);
+					ChargerSpecification selectedCharger = nearestChargers.getCharger(selected);
+					Link selectedChargerLink = nearestChargers.getLink(selected);
 					Facility nexttoFacility = new LinkWrapperFacility(selectedChargerLink);
+					tracedCharger = selectedCharger;
 					//if (nexttoFacility.getLinkId().equals(lastFrom.getLinkId())) {
 					//	continue;
 					//}
-					List<? extends PlanElement> routeSegment = delegate.calcRoute(lastFrom, nexttoFacility,
+					List<? extends PlanElement> routeSegment = calcNetworkLeg(lastFrom, nexttoFacility,
 							lastArrivaltime, person);
 					Leg lastLeg = (Leg)routeSegment.get(0);
 					lastArrivaltime = lastLeg.getDepartureTime() + lastLeg.getTravelTime();
@@ -570,14 +577,13 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					double afterConsumptionSoc = battery.getSoc()-estimatedOverallConsumption;
 					
 					lastFrom = nexttoFacility;
-					List<? extends PlanElement> routeSegment1 = walkRouter.calcRoute(lastFrom, toFacility, lastArrivaltime, person);
-					Leg lastLeg1 = (Leg)routeSegment1.get(0);
+					Leg lastLeg1 = calcWalkLeg(false, selectedChargerLink, toFacility, lastArrivaltime, person);
 					//stagedRoute.add(lastLeg1);
 					double walkingtime =  lastLeg1.getTravelTime();
 					//stagedRoute.addAll(walkRouter.calcRoute(lastFrom, toFacility, lastArrivaltime, person));
 					double maxChargingTime = 0;
 					double actduration = 0;
-					if (findAct.getEndTime().toString()=="OptionalTime[UNDEFINED]") {
+					if (findAct.getEndTime().isUndefined()) {
 						findAct.setEndTime(3600*24);
 						actduration	= findAct.getEndTime().seconds() - lastArrivaltime;
 						maxChargingTime = Math.min(actduration+walkingtime,evConfigGroup.getMaximumChargeTime());
@@ -596,89 +602,242 @@ public final class MyEvNetworkRoutingModule implements RoutingModule {
 					}
 					double estimatedChargingTime = (estimatedChargingPower)*1.5 / maxPowerEstimate;
 					if(estimatedChargingTime < evConfigGroup.getMinimumChargeTime()) {
-						return basicRoute;
+						return branch(Branch.BELOW_MINIMUM_CHARGE_TIME, basicRoute);
 					}
 					chargeAct.setMaximumDuration(estimatedChargingTime);
 					stagedRoute.add(chargeAct);
 					stagedRoute.add(lastLeg1);
-					return stagedRoute;
+					return branch(Branch.DESTINATION_PUBLIC, stagedRoute);
 				}
 			}
 
 		}
 	}
 
-	private Map<Link, Double> estimateConsumption(ElectricVehicleSpecification ev, Leg basicLeg) {
-		Map<Link, Double> consumptions = new LinkedHashMap<>();
-		NetworkRoute route = (NetworkRoute)basicLeg.getRoute();
-		List<Link> links = NetworkUtils.getLinks(network, route.getLinkIds());
-		ElectricVehicle pseudoVehicle = MyElectricVehicleImpl.create(ev, driveConsumptionFactory, auxConsumptionFactory,
-				v -> charger -> {
-					throw new UnsupportedOperationException();
-				});
-		DriveEnergyConsumption driveEnergyConsumption = pseudoVehicle.getDriveEnergyConsumption();
-		AuxEnergyConsumption auxEnergyConsumption = pseudoVehicle.getAuxEnergyConsumption();
-		double lastSoc = pseudoVehicle.getBattery().getSoc();
-		double linkEnterTime = basicLeg.getDepartureTime();
-		for (Link l : links) {
-			double travelT = travelTime.getLinkTravelTime(l, basicLeg.getDepartureTime(), null, null);
-
-			double consumption = driveEnergyConsumption.calcEnergyConsumption(l, travelT, linkEnterTime)
-					+ auxEnergyConsumption.calcEnergyConsumption(basicLeg.getDepartureTime(), travelT, l.getId());
-			if(pseudoVehicle.getVehicleSize() == "small") {
-				pseudoVehicle.getBattery().changeSoc(-consumption*CONSTANT.SmallCoef);
+	private <T> T branch(Branch branch, T route) {
+		lastBranch = branch;
+		return route;
+	}
+
+	private long startPhase() {
+		return metrics == null ? 0 : System.nanoTime();
+	}
+
+	private void endPhase(Phase phase, long start) {
+		if (metrics != null) {
+			recorder.recordPhase(phase, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Routes the direct network leg of the trip, which is the route itself unless the trip charges.
+	 */
+	private List<? extends PlanElement> routeBaseLeg(Facility fromFacility, Facility toFacility,
+			double departureTime, Person person) {
+		long start = startPhase();
+		List<? extends PlanElement> route = routeNetworkLeg(fromFacility, toFacility, departureTime, person);
+		endPhase(Phase.BASE_ROUTE, start);
+		return route;
+	}
+
+	/**
+	 * Routes a leg between two stops of a staged route.
+	 */
+	private List<? extends PlanElement> calcNetworkLeg(Facility fromFacility, Facility toFacility,
+			double departureTime, Person person) {
+		long start = startPhase();
+		List<? extends PlanElement> route = routeNetworkLeg(fromFacility, toFacility, departureTime, person);
+		endPhase(Phase.SUB_LEG_ROUTING, start);
+		return route;
+	}
+
+	/**
+	 * Routes a single network leg with the delegate. Network legs are not cached, as they depend on the person (e.g.
+	 * through a randomized travel disutility).
+	 */
+	private List<? extends PlanElement> routeNetworkLeg(Facility fromFacility, Facility toFacility,
+			double departureTime, Person person) {
+		return delegate.calcRoute(fromFacility, toFacility, departureTime, person);
+	}
+
+	/**
+	 * Walk (or fast walk) leg from the charger link to the destination, taken from the walk table if possible.
+	 */
+	private Leg calcWalkLeg(boolean fast, Link chargerLink, Facility toFacility, double departureTime,
+			Person person) {
+		long start = startPhase();
+		Leg leg = null;
+		if (walkTable != null && toFacility instanceof ActivityFacility) {
+			leg = walkTable.createWalkLeg(fast, chargerLink, (ActivityFacility)toFacility, departureTime);
+		}
+		if (leg == null) {
+			RoutingModule router = fast ? fastwalk : walkRouter;
+			leg = (Leg)router.calcRoute(new LinkWrapperFacility(chargerLink), toFacility, departureTime, person)
+					.get(0);
+		}
+		endPhase(Phase.WALK_LEG, start);
+		return leg;
+	}
+
+	/**
+	 * Looks up a cached en-route charging route of the vehicle and, on a hit, sets the charge-up-to level and estimated
+	 * SoC of the vehicle as routing the trip did.
+	 *
+	 * @return the staged route or null if not cached
+	 */
+	private List<PlanElement> getCachedEnRouteRoute(RouteCache.Key key, double departureTime, ElectricVehicle vehicle) {
+		RouteCache.Template template = routeCache.get(key);
+		if (template == null) {
+			return null;
+		}
+		if (!Double.isNaN(template.getChargeUpTo())) {
+			vehicle.setChargeUpTo(template.getChargeUpTo());
+			vehicle.getBattery().setEstimatedSoc(vehicle.getChargeUpTo());
+		}
+		return template.instantiate(departureTime);
+	}
+
+	private void cacheEnRouteRoute(@Nullable RouteCache.Key key, List<PlanElement> stagedRoute, double departureTime,
+			ElectricVehicle vehicle) {
+		if (key != null) {
+			routeCache.put(key, stagedRoute, departureTime,
+					containsChargingStop(stagedRoute) ? vehicle.getChargeUpTo() : Double.NaN);
+		}
+	}
+
+	private RouteCache.Key createEnRouteKey(Id<ElectricVehicle> evId, Facility fromFacility, Facility toFacility,
+			double departureTime, double estimatedSoc, ElectricVehicleSpecification ev) {
+		double capacity = ev.getBatteryCapacity();
+		int socBucket = Math.max(0, Math.min((int)(estimatedSoc / capacity * socBuckets), socBuckets - 1));
+		return routeCache.createKey(evId, fromFacility.getLinkId(), toFacility.getLinkId(), departureTime, socBucket);
+	}
+
+	private static boolean containsChargingStop(List<PlanElement> stagedRoute) {
+		for (PlanElement planElement : stagedRoute) {
+			if (planElement instanceof Activity) {
+				return true;
 			}
-			else if(pseudoVehicle.getVehicleSize() == "large") {
-				pseudoVehicle.getBattery().changeSoc(-consumption*CONSTANT.LargeCoef);
+		}
+		return false;
+	}
+
+	/**
+	 * Routes the whole trip, including the charging stops, with a single energy-constrained search.
+	 *
+	 * @return the staged route or null if the search found no feasible path
+	 */
+	private List<PlanElement> calcEnergyConstrainedRoute(Facility fromFacility, Facility toFacility,
+			double departureTime, double estimatedSoc, ElectricVehicleSpecification ev, ElectricVehicle vehicle) {
+		Link fromLink = network.getLinks().get(fromFacility.getLinkId());
+		Link toLink = network.getLinks().get(toFacility.getLinkId());
+		EnergyConstrainedPathCalculator.StagedPath stagedPath = constrainedPathCalculator.calcStagedPath(fromLink,
+				toLink, departureTime, ev, estimatedSoc);
+		if (stagedPath == null) {
+			return null;
+		}
+
+		List<PlanElement> stagedRoute = new ArrayList<>();
+		Link legStartLink = fromLink;
+		for (int i = 0; i < stagedPath.legs.size(); i++) {
+			EnergyConstrainedPathCalculator.ChargingStop stop = i < stagedPath.stops.size() ?
+					stagedPath.stops.get(i) :
+					null;
+			Link legEndLink = stop != null ? stop.link : toLink;
+			LeastCostPathCalculator.Path path = stagedPath.legs.get(i);
+			NetworkRoute route = RouteUtils.createLinkNetworkRouteImpl(legStartLink.getId(),
+					NetworkUtils.getLinkIds(path.links), legEndLink.getId());
+			route.setTravelTime(path.travelTime);
+			route.setTravelCost(path.travelCost);
+			route.setDistance(RouteUtils.calcDistance(route, 1.0, 1.0, network));
+			Leg leg = PopulationUtils.createLeg(mode);
+			leg.setDepartureTime(stagedPath.legDepartureTimes[i]);
+			leg.setTravelTime(path.travelTime);
+			leg.setRoute(route);
+			stagedRoute.add(leg);
+
+			if (stop != null) {
+				Activity chargeAct = PopulationUtils.createStageActivityFromCoordLinkIdAndModePrefix(stop.link.getCoord(),
+						stop.link.getId(), stageActivityModePrefix);
+				chargeAct.setMaximumDuration(stop.duration);
+				tracedCharger = stop.charger;
+				stagedRoute.add(chargeAct);
+				vehicle.setChargeUpTo(stop.socAfterCharging);
+				vehicle.getBattery().setEstimatedSoc(vehicle.getChargeUpTo());
 			}
-			else {
-				pseudoVehicle.getBattery().changeSoc(-consumption);
+			legStartLink = legEndLink;
+		}
+		return stagedRoute;
+	}
+
+	/**
+	 * Fills {@link #nearestChargers} with the public chargers of the vehicle's charger types that are cheapest to reach
+	 * on the network from the link. Falls back to the straight-line nearest compatible chargers if the network search
+	 * is disabled or finds no charger, and to chargers of any type if there is no compatible one.
+	 */
+	private void findChargers(Link link, double time, long chargerTypeMask) {
+		long start = startPhase();
+		searchChargers(link, time, chargerTypeMask);
+		endPhase(Phase.CHARGER_SEARCH, start);
+	}
+
+	private void searchChargers(Link link, double time, long chargerTypeMask) {
+		if (chargerSearch != null) {
+			chargerSearch.findCheapestChargers(link, time, false, chargerTypeMask, nearestChargers);
+			if (nearestChargers.size() > 0) {
+				nearestChargersByTravelTime = true;
+				return;
 			}
-			double currentSoc = pseudoVehicle.getBattery().getSoc();
-			// to accomodate for ERS, where energy charge is directly implemented in the consumption model
-			double consumptionDiff = (lastSoc - currentSoc);
-			lastSoc = currentSoc;
-			consumptions.put(l, consumptionDiff);
-			linkEnterTime += travelT;
 		}
-		return consumptions;
+		findNearestChargers(link, chargerTypeMask);
 	}
-	
-	private static boolean isCoordInsidePolygon(Coord c, Coord[] v) {
-        int j = v.length - 1;
-        boolean oddNodes = false;
-        for (int i = 0; i < v.length; i++) {
-                if ((v[i].getY() < c.getY() && v[j].getY() >= c.getY()) || v[j].getY() < c.getY()
-                               && v[i].getY() >= c.getY()) {
-                        if (v[i].getX() + (c.getY() - v[i].getY()) / 
-                                       (v[j].getY() - v[i].getY()) * (v[j].getX() - v[i].getX()) < c.getX()) {
-                               oddNodes = !oddNodes;
-                        }
-                }
-                j = i;
-        }
-        return oddNodes;
+
+	/**
+	 * Fills {@link #nearestChargers} with the public chargers of the vehicle's charger types that are closest
+	 * (straight-line) to the destination link, or with chargers of any type if there is no compatible one. The agent
+	 * walks from the charger to the destination, so the drive time to the destination is not the relevant cost.
+	 */
+	private void findDestinationChargers(Link link, long chargerTypeMask) {
+		long start = startPhase();
+		findNearestChargers(link, chargerTypeMask);
+		endPhase(Phase.CHARGER_SEARCH, start);
+	}
+
+	private void findNearestChargers(Link link, long chargerTypeMask) {
+		nearestChargersByTravelTime = false;
+		chargerIndex.findNearestPublicChargers(link.getCoord(), chargerTypeMask, nearestChargers);
+		if (nearestChargers.size() == 0) {
+			chargerIndex.findNearestPublicChargers(link.getCoord(), ChargerSpatialIndex.ALL_CHARGER_TYPES,
+					nearestChargers);
+		}
+	}
+
+	/**
+	 * Selects one of {@link #nearestChargers}: the cheapest one, or, with an occupancy ledger, the one with the lowest
+	 * travel time (the walk time if at the destination) plus expected waiting time.
+	 *
+	 * @param time the departure time of the en-route search, or the arrival time at the destination
+	 * @return the index of the selected charger
+	 */
+	private int selectCharger(double time, boolean atDestination) {
+		if (occupancyLedger == null) {
+			return 0;
+		}
+		int selected = 0;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < nearestChargers.size(); i++) {
+			double score = nearestChargers.getScore(i);
+			double travelTime = nearestChargersByTravelTime ? score :
+					Math.sqrt(score) / (atDestination ? BEELINE_WALK_SPEED : BEELINE_SPEED);
+			double arrivalTime = atDestination ? time : time + travelTime;
+			double cost = travelTime + occupancyLedger.getExpectedWaitTime(nearestChargers.getLink(i).getId(),
+					arrivalTime);
+			if (cost < bestCost) {
+				bestCost = cost;
+				selected = i;
+			}
+		}
+		return selected;
 	}
-	
-	private static Coord[] getVertices() {
-        LinkedList<Coord> coords = new LinkedList<Coord>();
-        coords.addLast(new Coord(722086.08, 6174341.30)); // 
-        coords.addLast(new Coord(718972.35, 6174272.17)); // 
-        coords.addLast(new Coord(718919.14, 6176321.60)); // 
-        coords.addLast(new Coord(719757.69, 6177852.24)); // 
-        coords.addLast(new Coord(721098.86, 6178852.42)); // 
-        coords.addLast(new Coord(722456.12, 6178605.02)); // 
-        coords.addLast(new Coord(724273.49, 6177054.33)); // 
-        coords.addLast(new Coord(724374.48, 6175777.20)); // 
-        coords.addLast(new Coord(723648.26, 6174580.74)); // 
-
-        Coord[] output = new Coord[coords.size()];
-        for (int i = 0; i < output.length; i++) {
-                            output[i] = coords.pollFirst();
-        }
-        return output;
-} 
-	
 
 	@Override
 	public String toString() {
@@ -9,26 +9,27 @@ import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.PopulationFactory;
 import org.matsim.contrib.ev.EvConfigGroup;
-import org.matsim.contrib.ev.charging.ChargingPower;
 import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
 import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
 import org.matsim.contrib.ev.fleet.ElectricFleetSpecification;
+import org.matsim.contrib.ev.fleet.MyElectricFleet;
 import org.matsim.contrib.ev.infrastructure.ChargingInfrastructureSpecification;
+import org.matsim.contrib.ev.routing.MyEvRoutingConfigGroup.EnRouteChargingAlgorithm;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.groups.PlansCalcRouteConfigGroup;
-import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.OutputDirectoryHierarchy;
 import org.matsim.core.router.DefaultRoutingModules;
 import org.matsim.core.router.RoutingModule;
 import org.matsim.core.router.SingleModeNetworksCache;
+import org.matsim.core.router.SpeedyALTFactory;
 import org.matsim.core.router.costcalculators.TravelDisutilityFactory;
 import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.LeastCostPathCalculatorFactory;
 import org.matsim.core.router.util.TravelTime;
+import org.matsim.facilities.ActivityFacilities;
 
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 public class MyEvNetworkRoutingProvider implements Provider<RoutingModule> {
 	private static final Logger log = Logger.getLogger(MyEvNetworkRoutingProvider.class);
@@ -50,17 +51,14 @@ public class MyEvNetworkRoutingProvider implements Provider<RoutingModule> {
 	private PlansCalcRouteConfigGroup plansCalcRouteConfigGroup;
 
 	
-	//NEW
+	// routing modules are not thread-safe, so each EV routing module gets its own walk routers
 	@Inject
-	private ChargingPower.Factory chargingPowerFactory;
-	
-	@Inject
-    @Named(TransportMode.walk)
-    private RoutingModule walkRouter;
-	
+	@Named(TransportMode.walk)
+	private Provider<RoutingModule> walkRouterProvider;
+
 	@Inject
-    @Named("fast_walk")
-    private RoutingModule fastwalk;
+	@Named("fast_walk")
+	private Provider<RoutingModule> fastwalkProvider;
 	
 	@Inject
 	private Network network;
@@ -74,6 +72,13 @@ public class MyEvNetworkRoutingProvider implements Provider<RoutingModule> {
 	@Inject
 	private ElectricFleetSpecification electricFleetSpecification;
 
+	// one fleet per controler run, shared by all EV routing modules and threads
+	@Inject
+	private MyElectricFleet fleet;
+
+	@Inject
+	private Provider<FleetStateSnapshots> fleetStateSnapshots;
+
 	@Inject
 	private ChargingInfrastructureSpecification chargingInfrastructureSpecification;
 
@@ -83,6 +88,15 @@ public class MyEvNetworkRoutingProvider implements Provider<RoutingModule> {
 	@Inject
 	private AuxEnergyConsumption.Factory auxConsumptionFactory;
 
+	@Inject
+	private ControlerListenerManager controlerListenerManager;
+
+	@Inject
+	private ActivityFacilities facilities;
+
+	@Inject
+	private OutputDirectoryHierarchy controlerIO;
+
 	/**
 	 * This is the older (and still more standard) constructor, where the routingMode and the resulting mode were the
 	 * same.
@@ -108,26 +122,25 @@ public class MyEvNetworkRoutingProvider implements Provider<RoutingModule> {
 
 	private final String mode;
 
+	// shared by the modules of all routing threads, so the landmarks are computed once per network
+	private LeastCostPathCalculatorFactory landmarkPathCalculatorFactory;
+
+	private synchronized LeastCostPathCalculatorFactory getLandmarkPathCalculatorFactory() {
+		if (landmarkPathCalculatorFactory == null) {
+			landmarkPathCalculatorFactory = new SpeedyALTFactory();
+		}
+		return landmarkPathCalculatorFactory;
+	}
+
 	@Override
 	public RoutingModule get() {
 		log.debug("requesting network routing module with routingMode=" + routingMode + ";\tmode=" + mode);
 
-		// the network refers to the (transport)mode:
-		Network filteredNetwork = null;
+		MyEvRoutingConfigGroup evRoutingConfig = MyEvRoutingConfigGroup.get(config);
 
-		// Ensure this is not performed concurrently by multiple threads!
-		synchronized (this.singleModeNetworksCache.getSingleModeNetworksCache()) {
-
-			filteredNetwork = this.singleModeNetworksCache.getSingleModeNetworksCache().get(mode);
-			if (filteredNetwork == null) {
-				TransportModeNetworkFilter filter = new TransportModeNetworkFilter(network);
-				Set<String> modes = new HashSet<>();
-				modes.add(mode);
-				filteredNetwork = NetworkUtils.createNetwork();
-				filter.filter(filteredNetwork, modes);
-				this.singleModeNetworksCache.getSingleModeNetworksCache().put(mode, filteredNetwork);
-			}
-		}
+		// the network refers to the (transport)mode; filtered once per mode, without blocking the other modes
+		Network filteredNetwork = SingleModeNetworks.get(network, singleModeNetworksCache, mode,
+				evRoutingConfig.getFilteredNetworkDirectory());
 
 		// the travel time & disutility refer to the routing mode:
 		TravelDisutilityFactory travelDisutilityFactory = this.travelDisutilityFactories.get(routingMode);
@@ -139,17 +152,76 @@ public class MyEvNetworkRoutingProvider implements Provider<RoutingModule> {
 			throw new RuntimeException("No TravelTime bound for mode " + routingMode + ".");
 		}
 
-		LeastCostPathCalculator routeAlgo = leastCostPathCalculatorFactory.createPathCalculator(filteredNetwork,
+		LinkEnergyConsumptionCache consumptionCache = evRoutingConfig.getConsumptionCacheTimeBinSize() > 0 ?
+				LinkEnergyConsumptionCache.getOrCreate(travelTime, evRoutingConfig.getConsumptionCacheTimeBinSize(),
+						config.travelTimeCalculator().getMaxTime(), controlerListenerManager) :
+				null;
+
+		ChargerSpatialIndex chargerIndex = ChargerSpatialIndex.getOrCreate(chargingInfrastructureSpecification,
+				filteredNetwork);
+		ChargerCandidateSearch chargerSearch = evRoutingConfig.getChargerSearchMaxTravelTime() > 0 ?
+				new ChargerCandidateSearch(travelTime, chargerIndex, evRoutingConfig.getChargerSearchMaxTravelTime()) :
+				null;
+
+		EnergyConstrainedPathCalculator constrainedPathCalculator = null;
+		if (evRoutingConfig.getEnRouteChargingAlgorithm() == EnRouteChargingAlgorithm.ENERGY_CONSTRAINED) {
+			constrainedPathCalculator = new EnergyConstrainedPathCalculator(travelTime,
+					new EnergyConsumptionEstimator(filteredNetwork, travelTime, driveConsumptionFactory,
+							auxConsumptionFactory, consumptionCache), chargerIndex,
+					EvConfigGroup.get(config).getMinimumChargeTime(), evRoutingConfig.getSocBuckets(),
+					evRoutingConfig.getMaxSettledStates());
+		}
+
+		ChargingZones chargingZones = ChargingZones.getOrCreate(filteredNetwork, facilities,
+				evRoutingConfig.getChargingZonesFileUrl(config.getContext()),
+				evRoutingConfig.getChargingZoneGridCellSize());
+
+		RouteCache routeCache = evRoutingConfig.getRouteCacheMaximumSize() > 0 ?
+				RouteCache.getOrCreate(travelTime, filteredNetwork, evRoutingConfig.getRouteCacheTimeBinSize(),
+						evRoutingConfig.getRouteCacheMaximumSize(),
+						evRoutingConfig.getRouteCacheTravelTimeChangeThreshold(), controlerListenerManager) :
+				null;
+
+		ChargerWalkTable walkTable = evRoutingConfig.getChargerWalkTableRadius() > 0 ?
+				ChargerWalkTable.getOrCreate(chargingInfrastructureSpecification, filteredNetwork, facilities,
+						walkRouterProvider, TransportMode.walk, fastwalkProvider, "fast_walk",
+						evRoutingConfig.getChargerWalkTableRadius(), evRoutingConfig.getChargerWalkTableFile()) :
+				null;
+
+		ChargerOccupancyLedger occupancyLedger = evRoutingConfig.getChargerOccupancySlotSize() > 0 ?
+				ChargerOccupancyLedger.getOrCreate(chargerIndex, filteredNetwork,
+						evRoutingConfig.getChargerOccupancySlotSize(), config.travelTimeCalculator().getMaxTime(),
+						controlerListenerManager) :
+				null;
+
+		LeastCostPathCalculatorFactory pathCalculatorFactory = evRoutingConfig.isLandmarkDelegateRouting() ?
+				getLandmarkPathCalculatorFactory() :
+				leastCostPathCalculatorFactory;
+		LeastCostPathCalculator routeAlgo = pathCalculatorFactory.createPathCalculator(filteredNetwork,
 				travelDisutilityFactory.createTravelDisutility(travelTime), travelTime);
 
 		// the following again refers to the (transport)mode, since it will determine the mode of the leg on the network:
 		if (plansCalcRouteConfigGroup.isInsertingAccessEgressWalk()) {
 			throw new IllegalArgumentException("Bushwacking is not currently supported by the EV routing module");
 		} else {
+			if (evRoutingConfig.getFleetStateSnapshotFile() != null || evRoutingConfig.isWriteFleetStateSnapshots()) {
+				fleetStateSnapshots.get(); // restores and/or writes the fleet state (singleton, so only once)
+			}
 			return new MyEvNetworkRoutingModule(mode, filteredNetwork,
 					DefaultRoutingModules.createPureNetworkRouter(mode, populationFactory, filteredNetwork, routeAlgo),
 					electricFleetSpecification, chargingInfrastructureSpecification, travelTime,
-					driveConsumptionFactory, auxConsumptionFactory, EvConfigGroup.get(config), chargingPowerFactory, walkRouter, fastwalk);
+					driveConsumptionFactory, auxConsumptionFactory, EvConfigGroup.get(config),
+					walkRouterProvider.get(), fastwalkProvider.get(), chargerIndex, chargerSearch, fleet,
+					consumptionCache, constrainedPathCalculator, chargingZones,
+					routeCache, evRoutingConfig.getSocBuckets(), walkTable,
+					EvRoutingRandom.getOrCreate(config.global().getRandomSeed(), controlerListenerManager),
+					evRoutingConfig.isRoutingMetrics() ?
+							EvRoutingMetrics.getOrCreate(controlerListenerManager, controlerIO) :
+							null,
+					PlugProbabilityCurves.getOrCreate(evRoutingConfig, config.getContext()), occupancyLedger,
+					evRoutingConfig.isTripTrace() ?
+							EvTripTrace.getOrCreate(controlerListenerManager, controlerIO) :
+							null);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,623 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.net.URL;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
+
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.ReflectiveConfigGroup;
+
+/**
+ * Settings of {@link MyEvNetworkRoutingModule}. The group is optional, all parameters have defaults.
+ */
+public final class MyEvRoutingConfigGroup extends ReflectiveConfigGroup {
+	public static final String GROUP_NAME = "evRouting";
+
+	public static MyEvRoutingConfigGroup get(Config config) {
+		return ConfigUtils.addOrGetModule(config, MyEvRoutingConfigGroup.class);
+	}
+
+	public enum EnRouteChargingAlgorithm {
+		STAGED, // charging stops where the estimated SoC runs out along the base route, one search per leg
+		ENERGY_CONSTRAINED // single search over (node, SoC bucket) states, see EnergyConstrainedPathCalculator
+	}
+
+	public static final String CONSUMPTION_CACHE_TIME_BIN_SIZE = "consumptionCacheTimeBinSize";
+	static final String CONSUMPTION_CACHE_TIME_BIN_SIZE_EXP = "Time bin size [s] of the per-link energy consumption"
+			+ " cache. The cache approximates the consumption of a link by the one at the start of the time bin, so"
+			+ " it changes the estimates. Best aligned with the travel time bin size. 0 disables the cache. The"
+			+ " default value is 0 s.";
+
+	public static final String CHARGER_SEARCH_MAX_TRAVEL_TIME = "chargerSearchMaxTravelTime";
+	static final String CHARGER_SEARCH_MAX_TRAVEL_TIME_EXP = "Maximum travel time [s] between an en-route charging"
+			+ " stop and a candidate charger in the network-based charger search. 0 switches back to the"
+			+ " straight-line nearest charger. Chargers at the destination are always the straight-line nearest"
+			+ " ones, as they are walked to. The default value is 1800 s.";
+
+	public static final String EN_ROUTE_CHARGING_ALGORITHM = "enRouteChargingAlgorithm";
+	static final String EN_ROUTE_CHARGING_ALGORITHM_EXP = "Algorithm used for trips that need en-route charging: "
+			+ "STAGED or ENERGY_CONSTRAINED. The default value is STAGED.";
+
+	public static final String SOC_BUCKETS = "socBuckets";
+	static final String SOC_BUCKETS_EXP = "Number of SoC buckets of the ENERGY_CONSTRAINED search and of the route"
+			+ " cache keys. The default value is 20.";
+
+	public static final String MAX_SETTLED_STATES = "maxSettledStates";
+	static final String MAX_SETTLED_STATES_EXP = "Maximum number of states settled by the ENERGY_CONSTRAINED search"
+			+ " before it gives up and the STAGED algorithm is used. The default value is 1000000.";
+
+	public static final String CHARGING_ZONES_FILE = "chargingZonesFile";
+	static final String CHARGING_ZONES_FILE_EXP = "Shape file with the (multi)polygons of the zones in which EV users"
+			+ " charge near their destination. If not set, the built-in city centre polygon is used.";
+
+	public static final String CHARGING_ZONE_GRID_CELL_SIZE = "chargingZoneGridCellSize";
+	static final String CHARGING_ZONE_GRID_CELL_SIZE_EXP = "Cell size [m] of the grid into which the charging zones are"
+			+ " compiled. Only coords in cells crossed by a zone boundary are tested against the polygons."
+			+ " The default value is 250 m.";
+
+	public static final String ROUTE_CACHE_MAXIMUM_SIZE = "routeCacheMaximumSize";
+	static final String ROUTE_CACHE_MAXIMUM_SIZE_EXP = "Maximum number of routes kept in the route cache, which reuses"
+			+ " the en-route charging route of a vehicle for a trip with the same origin and destination link,"
+			+ " departure time bin and SoC bucket, without routing the trip. Mainly useful across iterations, i.e. with"
+			+ " a travel time change threshold. Reused routes are reproducible as long as the cache does not reach"
+			+ " this size. 0 disables the cache. The default value is 0.";
+
+	public static final String ROUTE_CACHE_TIME_BIN_SIZE = "routeCacheTimeBinSize";
+	static final String ROUTE_CACHE_TIME_BIN_SIZE_EXP = "Departure time bin size [s] of the route cache."
+			+ " The default value is 900 s.";
+
+	public static final String CHARGER_WALK_TABLE_RADIUS = "chargerWalkTableRadius";
+	static final String CHARGER_WALK_TABLE_RADIUS_EXP = "Radius [m] around public chargers within which the walk and"
+			+ " fast walk legs to the activity facilities are precomputed at startup. Other legs are routed per trip."
+			+ " 0 disables the table. The default value is 0 m.";
+
+	public static final String CHARGER_WALK_TABLE_FILE = "chargerWalkTableFile";
+	static final String CHARGER_WALK_TABLE_FILE_EXP = "Binary file in which the charger walk table is stored. If the"
+			+ " file exists and has been built for the same public chargers, facilities, walk modes and radius, the"
+			+ " table is read from it instead of being built. Other changes of the walk routing (e.g. the walk speed)"
+			+ " are not detected, in which case the file has to be deleted. If not set, the table is built at every"
+			+ " start.";
+
+	public static final String FILTERED_NETWORK_DIRECTORY = "filteredNetworkDirectory";
+	static final String FILTERED_NETWORK_DIRECTORY_EXP = "Directory in which the single-mode networks filtered from"
+			+ " the full network are stored in a binary format. At the next start, they are read from there unless"
+			+ " the full network has changed. Custom node and link attributes are not stored. If not set, the networks"
+			+ " are filtered at every start.";
+
+	public static final String ROUTING_METRICS = "routingMetrics";
+	static final String ROUTING_METRICS_EXP = "If true, the counts and latencies of the routing branches and phases"
+			+ " are recorded per thread and written to evRoutingMetrics.csv in the iteration directories. The default"
+			+ " value is false.";
+
+	public static final String PLUG_PROBABILITY_CURVES_FILE = "plugProbabilityCurvesFile";
+	static final String PLUG_PROBABILITY_CURVES_FILE_EXP = "File with the curves of the probability that EV users plug"
+			+ " in at public, home and work chargers as a function of the SoC, per vehicle size. One point per line:"
+			+ " location;vehicleSize;soc;probability, with SoC and probability in %, and an empty vehicle size for"
+			+ " all sizes. If not set, or for locations not in the file, the built-in curves are used.";
+
+	public static final String PLUG_PROBABILITY_INTERPOLATION = "plugProbabilityInterpolation";
+	static final String PLUG_PROBABILITY_INTERPOLATION_EXP = "If true, the plug-in probability is interpolated"
+			+ " linearly between the points of a curve. Otherwise, a point applies to all SoCs above the previous"
+			+ " point up to its own SoC. The default value is false.";
+
+	public static final String CHARGER_OCCUPANCY_SLOT_SIZE = "chargerOccupancySlotSize";
+	static final String CHARGER_OCCUPANCY_SLOT_SIZE_EXP = "Size [s] of the time slots in which the charging"
+			+ " activities assigned by the routing are counted per public charger link. Public chargers are then"
+			+ " selected by travel time plus the expected waiting time for a free plug. 0 disables the counting, the"
+			+ " cheapest charger is selected. With several routing threads, the selection depends on the order in"
+			+ " which the trips are routed. The default value is 0.";
+
+	public static final String ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD = "routeCacheTravelTimeChangeThreshold";
+	static final String ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD_EXP = "Relative change of the travel time of a"
+			+ " passed link, compared with the travel time the cached route was created with, above which the cached"
+			+ " route is invalidated at the start of an iteration. The other cached routes are kept for the next"
+			+ " iteration. 0 invalidates the whole cache at the start of every iteration. The default value is 0.";
+
+	public static final String TRIP_TRACE = "tripTrace";
+	static final String TRIP_TRACE_EXP = "If true, the estimated SoC before and after, the routing branch, the charger,"
+			+ " the charging duration and the walk time of every routed EV trip are written to evTripTrace.bin in the"
+			+ " output directory, in a binary format (see EvTripTraceReader for the conversion to CSV). Trips are"
+			+ " dropped rather than slowing down the routing if the writer falls behind. The default value is false.";
+
+	public static final String LANDMARK_DELEGATE_ROUTING = "landmarkDelegateRouting";
+	static final String LANDMARK_DELEGATE_ROUTING_EXP = "If true, the network legs of EV trips are routed with ALT"
+			+ " (A* with landmarks) instead of the router configured in the controler. The landmarks are computed once"
+			+ " per filtered network and shared by all routing threads. The default value is false.";
+
+	public static final String FLEET_STATE_SNAPSHOT_FILE = "fleetStateSnapshotFile";
+	static final String FLEET_STATE_SNAPSHOT_FILE_EXP = "Snapshot of the routing fleet state (estimated SoC, charge-up-to"
+			+ " level and parking flags) from which the routing fleet is restored at startup, e.g. the evFleetState.bin"
+			+ " of an iteration of a previous run. If not set, the fleet starts from the initial SoCs.";
+
+	public static final String WRITE_FLEET_STATE_SNAPSHOTS = "writeFleetStateSnapshots";
+	static final String WRITE_FLEET_STATE_SNAPSHOTS_EXP = "If true, a snapshot of the routing fleet state is written to"
+			+ " evFleetState.bin in the iteration directory at the end of every iteration. Only the routing estimates"
+			+ " are saved, the SoCs reached in the mobsim are not. The default value is false.";
+
+	@PositiveOrZero
+	private int consumptionCacheTimeBinSize = 0;// [s]
+
+	@PositiveOrZero
+	private double chargerSearchMaxTravelTime = 1800;// [s]
+
+	@NotNull
+	private EnRouteChargingAlgorithm enRouteChargingAlgorithm = EnRouteChargingAlgorithm.STAGED;
+
+	@Positive
+	private int socBuckets = 20;
+
+	@Positive
+	private int maxSettledStates = 1_000_000;
+
+	private String chargingZonesFile = null;
+
+	@Positive
+	private double chargingZoneGridCellSize = 250;// [m]
+
+	@PositiveOrZero
+	private int routeCacheMaximumSize = 0;
+
+	@Positive
+	private int routeCacheTimeBinSize = 900;// [s]
+
+	@PositiveOrZero
+	private double chargerWalkTableRadius = 0;// [m]
+
+	private String chargerWalkTableFile = null;
+
+	private String filteredNetworkDirectory = null;
+
+	private boolean routingMetrics = false;
+
+	private String plugProbabilityCurvesFile = null;
+
+	private boolean plugProbabilityInterpolation = false;
+
+	@PositiveOrZero
+	private int chargerOccupancySlotSize = 0;// [s]
+
+	@PositiveOrZero
+	private double routeCacheTravelTimeChangeThreshold = 0;
+
+	private boolean tripTrace = false;
+
+	private boolean landmarkDelegateRouting = false;
+
+	private String fleetStateSnapshotFile = null;
+
+	private boolean writeFleetStateSnapshots = false;
+
+	public MyEvRoutingConfigGroup() {
+		super(GROUP_NAME);
+	}
+
+	@Override
+	public Map<String, String> getComments() {
+		Map<String, String> map = super.getComments();
+		map.put(CONSUMPTION_CACHE_TIME_BIN_SIZE, CONSUMPTION_CACHE_TIME_BIN_SIZE_EXP);
+		map.put(CHARGER_SEARCH_MAX_TRAVEL_TIME, CHARGER_SEARCH_MAX_TRAVEL_TIME_EXP);
+		map.put(EN_ROUTE_CHARGING_ALGORITHM, EN_ROUTE_CHARGING_ALGORITHM_EXP);
+		map.put(SOC_BUCKETS, SOC_BUCKETS_EXP);
+		map.put(MAX_SETTLED_STATES, MAX_SETTLED_STATES_EXP);
+		map.put(CHARGING_ZONES_FILE, CHARGING_ZONES_FILE_EXP);
+		map.put(CHARGING_ZONE_GRID_CELL_SIZE, CHARGING_ZONE_GRID_CELL_SIZE_EXP);
+		map.put(ROUTE_CACHE_MAXIMUM_SIZE, ROUTE_CACHE_MAXIMUM_SIZE_EXP);
+		map.put(ROUTE_CACHE_TIME_BIN_SIZE, ROUTE_CACHE_TIME_BIN_SIZE_EXP);
+		map.put(CHARGER_WALK_TABLE_RADIUS, CHARGER_WALK_TABLE_RADIUS_EXP);
+		map.put(CHARGER_WALK_TABLE_FILE, CHARGER_WALK_TABLE_FILE_EXP);
+		map.put(FILTERED_NETWORK_DIRECTORY, FILTERED_NETWORK_DIRECTORY_EXP);
+		map.put(ROUTING_METRICS, ROUTING_METRICS_EXP);
+		map.put(PLUG_PROBABILITY_CURVES_FILE, PLUG_PROBABILITY_CURVES_FILE_EXP);
+		map.put(PLUG_PROBABILITY_INTERPOLATION, PLUG_PROBABILITY_INTERPOLATION_EXP);
+		map.put(CHARGER_OCCUPANCY_SLOT_SIZE, CHARGER_OCCUPANCY_SLOT_SIZE_EXP);
+		map.put(ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD, ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD_EXP);
+		map.put(TRIP_TRACE, TRIP_TRACE_EXP);
+		map.put(LANDMARK_DELEGATE_ROUTING, LANDMARK_DELEGATE_ROUTING_EXP);
+		map.put(FLEET_STATE_SNAPSHOT_FILE, FLEET_STATE_SNAPSHOT_FILE_EXP);
+		map.put(WRITE_FLEET_STATE_SNAPSHOTS, WRITE_FLEET_STATE_SNAPSHOTS_EXP);
+		return map;
+	}
+
+	/**
+	 * @return {@value #CONSUMPTION_CACHE_TIME_BIN_SIZE_EXP}
+	 */
+	@StringGetter(CONSUMPTION_CACHE_TIME_BIN_SIZE)
+	public int getConsumptionCacheTimeBinSize() {
+		return consumptionCacheTimeBinSize;
+	}
+
+	/**
+	 * @param consumptionCacheTimeBinSize {@value #CONSUMPTION_CACHE_TIME_BIN_SIZE_EXP}
+	 */
+	@StringSetter(CONSUMPTION_CACHE_TIME_BIN_SIZE)
+	public MyEvRoutingConfigGroup setConsumptionCacheTimeBinSize(int consumptionCacheTimeBinSize) {
+		this.consumptionCacheTimeBinSize = consumptionCacheTimeBinSize;
+		return this;
+	}
+
+	/**
+	 * @return {@value #CHARGER_SEARCH_MAX_TRAVEL_TIME_EXP}
+	 */
+	@StringGetter(CHARGER_SEARCH_MAX_TRAVEL_TIME)
+	public double getChargerSearchMaxTravelTime() {
+		return chargerSearchMaxTravelTime;
+	}
+
+	/**
+	 * @param chargerSearchMaxTravelTime {@value #CHARGER_SEARCH_MAX_TRAVEL_TIME_EXP}
+	 */
+	@StringSetter(CHARGER_SEARCH_MAX_TRAVEL_TIME)
+	public MyEvRoutingConfigGroup setChargerSearchMaxTravelTime(double chargerSearchMaxTravelTime) {
+		this.chargerSearchMaxTravelTime = chargerSearchMaxTravelTime;
+		return this;
+	}
+
+	/**
+	 * @return {@value #EN_ROUTE_CHARGING_ALGORITHM_EXP}
+	 */
+	@StringGetter(EN_ROUTE_CHARGING_ALGORITHM)
+	public EnRouteChargingAlgorithm getEnRouteChargingAlgorithm() {
+		return enRouteChargingAlgorithm;
+	}
+
+	/**
+	 * @param enRouteChargingAlgorithm {@value #EN_ROUTE_CHARGING_ALGORITHM_EXP}
+	 */
+	@StringSetter(EN_ROUTE_CHARGING_ALGORITHM)
+	public MyEvRoutingConfigGroup setEnRouteChargingAlgorithm(EnRouteChargingAlgorithm enRouteChargingAlgorithm) {
+		this.enRouteChargingAlgorithm = enRouteChargingAlgorithm;
+		return this;
+	}
+
+	/**
+	 * @return {@value #SOC_BUCKETS_EXP}
+	 */
+	@StringGetter(SOC_BUCKETS)
+	public int getSocBuckets() {
+		return socBuckets;
+	}
+
+	/**
+	 * @param socBuckets {@value #SOC_BUCKETS_EXP}
+	 */
+	@StringSetter(SOC_BUCKETS)
+	public MyEvRoutingConfigGroup setSocBuckets(int socBuckets) {
+		this.socBuckets = socBuckets;
+		return this;
+	}
+
+	/**
+	 * @return {@value #MAX_SETTLED_STATES_EXP}
+	 */
+	@StringGetter(MAX_SETTLED_STATES)
+	public int getMaxSettledStates() {
+		return maxSettledStates;
+	}
+
+	/**
+	 * @param maxSettledStates {@value #MAX_SETTLED_STATES_EXP}
+	 */
+	@StringSetter(MAX_SETTLED_STATES)
+	public MyEvRoutingConfigGroup setMaxSettledStates(int maxSettledStates) {
+		this.maxSettledStates = maxSettledStates;
+		return this;
+	}
+
+	/**
+	 * @return {@value #CHARGING_ZONES_FILE_EXP}
+	 */
+	@StringGetter(CHARGING_ZONES_FILE)
+	public String getChargingZonesFile() {
+		return chargingZonesFile;
+	}
+
+	/**
+	 * @return the zones file resolved against the config context, or null if not set
+	 */
+	public URL getChargingZonesFileUrl(URL context) {
+		return chargingZonesFile == null ? null : ConfigGroup.getInputFileURL(context, chargingZonesFile);
+	}
+
+	/**
+	 * @param chargingZonesFile {@value #CHARGING_ZONES_FILE_EXP}
+	 */
+	@StringSetter(CHARGING_ZONES_FILE)
+	public MyEvRoutingConfigGroup setChargingZonesFile(String chargingZonesFile) {
+		this.chargingZonesFile = chargingZonesFile;
+		return this;
+	}
+
+	/**
+	 * @return {@value #CHARGING_ZONE_GRID_CELL_SIZE_EXP}
+	 */
+	@StringGetter(CHARGING_ZONE_GRID_CELL_SIZE)
+	public double getChargingZoneGridCellSize() {
+		return chargingZoneGridCellSize;
+	}
+
+	/**
+	 * @param chargingZoneGridCellSize {@value #CHARGING_ZONE_GRID_CELL_SIZE_EXP}
+	 */
+	@StringSetter(CHARGING_ZONE_GRID_CELL_SIZE)
+	public MyEvRoutingConfigGroup setChargingZoneGridCellSize(double chargingZoneGridCellSize) {
+		this.chargingZoneGridCellSize = chargingZoneGridCellSize;
+		return this;
+	}
+
+	/**
+	 * @return {@value #ROUTE_CACHE_MAXIMUM_SIZE_EXP}
+	 */
+	@StringGetter(ROUTE_CACHE_MAXIMUM_SIZE)
+	public int getRouteCacheMaximumSize() {
+		return routeCacheMaximumSize;
+	}
+
+	/**
+	 * @param routeCacheMaximumSize {@value #ROUTE_CACHE_MAXIMUM_SIZE_EXP}
+	 */
+	@StringSetter(ROUTE_CACHE_MAXIMUM_SIZE)
+	public MyEvRoutingConfigGroup setRouteCacheMaximumSize(int routeCacheMaximumSize) {
+		this.routeCacheMaximumSize = routeCacheMaximumSize;
+		return this;
+	}
+
+	/**
+	 * @return {@value #ROUTE_CACHE_TIME_BIN_SIZE_EXP}
+	 */
+	@StringGetter(ROUTE_CACHE_TIME_BIN_SIZE)
+	public int getRouteCacheTimeBinSize() {
+		return routeCacheTimeBinSize;
+	}
+
+	/**
+	 * @param routeCacheTimeBinSize {@value #ROUTE_CACHE_TIME_BIN_SIZE_EXP}
+	 */
+	@StringSetter(ROUTE_CACHE_TIME_BIN_SIZE)
+	public MyEvRoutingConfigGroup setRouteCacheTimeBinSize(int routeCacheTimeBinSize) {
+		this.routeCacheTimeBinSize = routeCacheTimeBinSize;
+		return this;
+	}
+
+	/**
+	 * @return {@value #CHARGER_WALK_TABLE_RADIUS_EXP}
+	 */
+	@StringGetter(CHARGER_WALK_TABLE_RADIUS)
+	public double getChargerWalkTableRadius() {
+		return chargerWalkTableRadius;
+	}
+
+	/**
+	 * @param chargerWalkTableRadius {@value #CHARGER_WALK_TABLE_RADIUS_EXP}
+	 */
+	@StringSetter(CHARGER_WALK_TABLE_RADIUS)
+	public MyEvRoutingConfigGroup setChargerWalkTableRadius(double chargerWalkTableRadius) {
+		this.chargerWalkTableRadius = chargerWalkTableRadius;
+		return this;
+	}
+
+	/**
+	 * @return {@value #CHARGER_WALK_TABLE_FILE_EXP}
+	 */
+	@StringGetter(CHARGER_WALK_TABLE_FILE)
+	public String getChargerWalkTableFile() {
+		return chargerWalkTableFile;
+	}
+
+	/**
+	 * @param chargerWalkTableFile {@value #CHARGER_WALK_TABLE_FILE_EXP}
+	 */
+	@StringSetter(CHARGER_WALK_TABLE_FILE)
+	public MyEvRoutingConfigGroup setChargerWalkTableFile(String chargerWalkTableFile) {
+		this.chargerWalkTableFile = chargerWalkTableFile;
+		return this;
+	}
+
+	/**
+	 * @return {@value #FILTERED_NETWORK_DIRECTORY_EXP}
+	 */
+	@StringGetter(FILTERED_NETWORK_DIRECTORY)
+	public String getFilteredNetworkDirectory() {
+		return filteredNetworkDirectory;
+	}
+
+	/**
+	 * @param filteredNetworkDirectory {@value #FILTERED_NETWORK_DIRECTORY_EXP}
+	 */
+	@StringSetter(FILTERED_NETWORK_DIRECTORY)
+	public MyEvRoutingConfigGroup setFilteredNetworkDirectory(String filteredNetworkDirectory) {
+		this.filteredNetworkDirectory = filteredNetworkDirectory;
+		return this;
+	}
+
+	/**
+	 * @return {@value #ROUTING_METRICS_EXP}
+	 */
+	@StringGetter(ROUTING_METRICS)
+	public boolean isRoutingMetrics() {
+		return routingMetrics;
+	}
+
+	/**
+	 * @param routingMetrics {@value #ROUTING_METRICS_EXP}
+	 */
+	@StringSetter(ROUTING_METRICS)
+	public MyEvRoutingConfigGroup setRoutingMetrics(boolean routingMetrics) {
+		this.routingMetrics = routingMetrics;
+		return this;
+	}
+
+	/**
+	 * @return {@value #PLUG_PROBABILITY_CURVES_FILE_EXP}
+	 */
+	@StringGetter(PLUG_PROBABILITY_CURVES_FILE)
+	public String getPlugProbabilityCurvesFile() {
+		return plugProbabilityCurvesFile;
+	}
+
+	/**
+	 * @return the curves file resolved against the config context, or null if not set
+	 */
+	public URL getPlugProbabilityCurvesFileUrl(URL context) {
+		return plugProbabilityCurvesFile == null ?
+				null :
+				ConfigGroup.getInputFileURL(context, plugProbabilityCurvesFile);
+	}
+
+	/**
+	 * @param plugProbabilityCurvesFile {@value #PLUG_PROBABILITY_CURVES_FILE_EXP}
+	 */
+	@StringSetter(PLUG_PROBABILITY_CURVES_FILE)
+	public MyEvRoutingConfigGroup setPlugProbabilityCurvesFile(String plugProbabilityCurvesFile) {
+		this.plugProbabilityCurvesFile = plugProbabilityCurvesFile;
+		return this;
+	}
+
+	/**
+	 * @return {@value #PLUG_PROBABILITY_INTERPOLATION_EXP}
+	 */
+	@StringGetter(PLUG_PROBABILITY_INTERPOLATION)
+	public boolean isPlugProbabilityInterpolation() {
+		return plugProbabilityInterpolation;
+	}
+
+	/**
+	 * @param plugProbabilityInterpolation {@value #PLUG_PROBABILITY_INTERPOLATION_EXP}
+	 */
+	@StringSetter(PLUG_PROBABILITY_INTERPOLATION)
+	public MyEvRoutingConfigGroup setPlugProbabilityInterpolation(boolean plugProbabilityInterpolation) {
+		this.plugProbabilityInterpolation = plugProbabilityInterpolation;
+		return this;
+	}
+
+	/**
+	 * @return {@value #CHARGER_OCCUPANCY_SLOT_SIZE_EXP}
+	 */
+	@StringGetter(CHARGER_OCCUPANCY_SLOT_SIZE)
+	public int getChargerOccupancySlotSize() {
+		return chargerOccupancySlotSize;
+	}
+
+	/**
+	 * @param chargerOccupancySlotSize {@value #CHARGER_OCCUPANCY_SLOT_SIZE_EXP}
+	 */
+	@StringSetter(CHARGER_OCCUPANCY_SLOT_SIZE)
+	public MyEvRoutingConfigGroup setChargerOccupancySlotSize(int chargerOccupancySlotSize) {
+		this.chargerOccupancySlotSize = chargerOccupancySlotSize;
+		return this;
+	}
+
+	/**
+	 * @return {@value #ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD_EXP}
+	 */
+	@StringGetter(ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD)
+	public double getRouteCacheTravelTimeChangeThreshold() {
+		return routeCacheTravelTimeChangeThreshold;
+	}
+
+	/**
+	 * @param routeCacheTravelTimeChangeThreshold {@value #ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD_EXP}
+	 */
+	@StringSetter(ROUTE_CACHE_TRAVEL_TIME_CHANGE_THRESHOLD)
+	public MyEvRoutingConfigGroup setRouteCacheTravelTimeChangeThreshold(double routeCacheTravelTimeChangeThreshold) {
+		this.routeCacheTravelTimeChangeThreshold = routeCacheTravelTimeChangeThreshold;
+		return this;
+	}
+
+	/**
+	 * @return {@value #TRIP_TRACE_EXP}
+	 */
+	@StringGetter(TRIP_TRACE)
+	public boolean isTripTrace() {
+		return tripTrace;
+	}
+
+	/**
+	 * @param tripTrace {@value #TRIP_TRACE_EXP}
+	 */
+	@StringSetter(TRIP_TRACE)
+	public MyEvRoutingConfigGroup setTripTrace(boolean tripTrace) {
+		this.tripTrace = tripTrace;
+		return this;
+	}
+
+	/**
+	 * @return {@value #LANDMARK_DELEGATE_ROUTING_EXP}
+	 */
+	@StringGetter(LANDMARK_DELEGATE_ROUTING)
+	public boolean isLandmarkDelegateRouting() {
+		return landmarkDelegateRouting;
+	}
+
+	/**
+	 * @param landmarkDelegateRouting {@value #LANDMARK_DELEGATE_ROUTING_EXP}
+	 */
+	@StringSetter(LANDMARK_DELEGATE_ROUTING)
+	public MyEvRoutingConfigGroup setLandmarkDelegateRouting(boolean landmarkDelegateRouting) {
+		this.landmarkDelegateRouting = landmarkDelegateRouting;
+		return this;
+	}
+
+	/**
+	 * @return {@value #FLEET_STATE_SNAPSHOT_FILE_EXP}
+	 */
+	@StringGetter(FLEET_STATE_SNAPSHOT_FILE)
+	public String getFleetStateSnapshotFile() {
+		return fleetStateSnapshotFile;
+	}
+
+	/**
+	 * @return the snapshot file resolved against the config context, or null if not set
+	 */
+	public URL getFleetStateSnapshotFileUrl(URL context) {
+		return fleetStateSnapshotFile == null ? null : ConfigGroup.getInputFileURL(context, fleetStateSnapshotFile);
+	}
+
+	/**
+	 * @param fleetStateSnapshotFile {@value #FLEET_STATE_SNAPSHOT_FILE_EXP}
+	 */
+	@StringSetter(FLEET_STATE_SNAPSHOT_FILE)
+	public MyEvRoutingConfigGroup setFleetStateSnapshotFile(String fleetStateSnapshotFile) {
+		this.fleetStateSnapshotFile = fleetStateSnapshotFile;
+		return this;
+	}
+
+	/**
+	 * @return {@value #WRITE_FLEET_STATE_SNAPSHOTS_EXP}
+	 */
+	@StringGetter(WRITE_FLEET_STATE_SNAPSHOTS)
+	public boolean isWriteFleetStateSnapshots() {
+		return writeFleetStateSnapshots;
+	}
+
+	/**
+	 * @param writeFleetStateSnapshots {@value #WRITE_FLEET_STATE_SNAPSHOTS_EXP}
+	 */
+	@StringSetter(WRITE_FLEET_STATE_SNAPSHOTS)
+	public MyEvRoutingConfigGroup setWriteFleetStateSnapshots(boolean writeFleetStateSnapshots) {
+		this.writeFleetStateSnapshots = writeFleetStateSnapshots;
+		return this;
+	}
+}
@@ -0,0 +1,105 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.utils.misc.OptionalTime;
+
+/**
+ * Trip index of one plan: the main activities in plan order, and for each activity the walk leg that accesses it (the
+ * leg three elements before the activity, as in "walk, interaction, car"). As in the original plan scan, the main
+ * activities are the elements of the core activity class, so stage activities of another class are skipped. Trips are
+ * looked up by departure time, i.e. by the end time of their origin activity.
+ * <p>
+ * The plan may be changed between the routing calls (the routed trips are inserted, other modules may replan), so the
+ * index is rebuilt for every routing call; this takes one pass over the plan elements. Not thread-safe, each routing
+ * module owns one index.
+ */
+final class PlanTripIndex {
+
+	static final int NOT_FOUND = -1;
+
+	// the original plan scan compared the class names of the plan elements
+	private static final String ACTIVITY_CLASS_NAME = "org.matsim.core.population.ActivityImpl";
+
+	private int activityCount;
+	private Activity[] activities = new Activity[16];
+	private Leg[] accessWalkLegs = new Leg[16];
+
+	void index(Plan plan) {
+		this.activityCount = 0;
+		List<PlanElement> planElements = plan.getPlanElements();
+		for (int i = 0; i < planElements.size(); i++) {
+			PlanElement planElement = planElements.get(i);
+			if (!planElement.getClass().getName().equals(ACTIVITY_CLASS_NAME)) {
+				continue;
+			}
+			Activity activity = (Activity)planElement;
+			if (activityCount == activities.length) {
+				activities = Arrays.copyOf(activities, 2 * activityCount);
+				accessWalkLegs = Arrays.copyOf(accessWalkLegs, 2 * activityCount);
+			}
+			activities[activityCount] = activity;
+			accessWalkLegs[activityCount] = i >= 4 ? getWalkLeg(planElements.get(i - 3)) : null;
+			activityCount++;
+		}
+	}
+
+	private static Leg getWalkLeg(PlanElement planElement) {
+		if (planElement instanceof Leg && ((Leg)planElement).getMode().contains("walk")) {
+			return (Leg)planElement;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the trip (index of its origin activity) that departs at the given time and has a destination activity,
+	 * or {@link #NOT_FOUND}
+	 */
+	int findTrip(double departureTime) {
+		for (int k = 0; k < activityCount - 1; k++) {
+			if (endsAt(k, departureTime)) {
+				return k;
+			}
+		}
+		return NOT_FOUND;
+	}
+
+	private boolean endsAt(int k, double time) {
+		OptionalTime endTime = activities[k].getEndTime();
+		return endTime.isDefined() && endTime.seconds() == time;
+	}
+
+	Activity getDestinationActivity(int trip) {
+		return activities[trip + 1];
+	}
+
+	/**
+	 * @return the walk leg accessing the destination activity, or null if there is none
+	 */
+	Leg getAccessWalkLeg(int trip) {
+		return accessWalkLegs[trip + 1];
+	}
+}
@@ -0,0 +1,265 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.matsim.contrib.ev.example.CONSTANT;
+import org.matsim.contrib.ev.fleet.VehicleSize;
+import org.matsim.core.utils.io.IOUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Probability [%] that an EV user plugs in at a public, home or work charger, as a function of the SoC of the vehicle.
+ * The curves are given as points (SoC [%], probability [%]) per charging location and, optionally, per vehicle size,
+ * and are compiled into one table per location and size with an entry for every SoC percent from 0 to 100, so looking
+ * up a probability is a single array read.
+ * <p>
+ * By default, a point is the probability for all SoCs above the previous point up to its own SoC (the SoCs above the
+ * last point get the probability of the last point); this is how the built-in curves of {@link CONSTANT} are read. With
+ * interpolation, the probability is interpolated linearly between the points instead.
+ * <p>
+ * The curves file has one point per line: {@code location;vehicleSize;soc;probability}, where the location is
+ * {@code public}, {@code home} or {@code work}, and the vehicle size is {@code small}, {@code medium}, {@code large}
+ * or empty for a curve used for all sizes without a curve of their own. Empty lines and lines starting with {@code #}
+ * are skipped. Locations without any curve in the file use the built-in curve.
+ */
+public final class PlugProbabilityCurves {
+	private static final Logger log = Logger.getLogger(PlugProbabilityCurves.class);
+
+	private static final Cache<MyEvRoutingConfigGroup, PlugProbabilityCurves> CURVES = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build();
+
+	/**
+	 * Returns the curves of the given config, compiling them on first access.
+	 */
+	public static PlugProbabilityCurves getOrCreate(MyEvRoutingConfigGroup evRoutingConfig, URL context) {
+		try {
+			return CURVES.get(evRoutingConfig, () -> {
+				URL curvesUrl = evRoutingConfig.getPlugProbabilityCurvesFileUrl(context);
+				return curvesUrl == null ?
+						createDefault(evRoutingConfig.isPlugProbabilityInterpolation()) :
+						read(curvesUrl, evRoutingConfig.isPlugProbabilityInterpolation());
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public enum Location {
+		PUBLIC("public"), HOME("home"), WORK("work");
+
+		private final String name;
+
+		Location(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static final int MAX_SOC = 100;// [%]
+	private static final VehicleSize[] SIZES = VehicleSize.values();
+	private static final Location[] LOCATIONS = Location.values();
+
+	/**
+	 * Curves as points (SoC [%] -> probability [%]) per location and size; null as size stands for all sizes.
+	 */
+	public static final class Points {
+		private final Map<Location, Map<VehicleSize, TreeMap<Double, Double>>> curves = new EnumMap<>(Location.class);
+		private final Map<Location, TreeMap<Double, Double>> defaultCurves = new EnumMap<>(Location.class);
+
+		public Points add(Location location, @Nullable VehicleSize size, double soc, double probability) {
+			if (soc < 0 || soc > MAX_SOC || probability < 0 || probability > 100) {
+				throw new IllegalArgumentException(
+						"Invalid point of the " + location.getName() + " curve: soc=" + soc + ", probability="
+								+ probability);
+			}
+			TreeMap<Double, Double> curve = size == null ?
+					defaultCurves.computeIfAbsent(location, l -> new TreeMap<>()) :
+					curves.computeIfAbsent(location, l -> new EnumMap<>(VehicleSize.class))
+							.computeIfAbsent(size, s -> new TreeMap<>());
+			curve.put(soc, probability);
+			return this;
+		}
+
+		private boolean contains(Location location) {
+			return curves.containsKey(location) || defaultCurves.containsKey(location);
+		}
+
+		@Nullable
+		private TreeMap<Double, Double> get(Location location, VehicleSize size) {
+			Map<VehicleSize, TreeMap<Double, Double>> sizeCurves = curves.get(location);
+			TreeMap<Double, Double> curve = sizeCurves == null ? null : sizeCurves.get(size);
+			return curve != null ? curve : defaultCurves.get(location);
+		}
+	}
+
+	/**
+	 * The curves of {@link CONSTANT}, for all vehicle sizes.
+	 */
+	static Points getDefaultPoints() {
+		Points points = new Points();
+		addAll(points, Location.PUBLIC, CONSTANT.PublicPlugRate);
+		addAll(points, Location.HOME, CONSTANT.HomePlugRate);
+		addAll(points, Location.WORK, CONSTANT.WorkPlugRate);
+		return points;
+	}
+
+	private static void addAll(Points points, Location location, Map<Integer, Integer> curve) {
+		for (Map.Entry<Integer, Integer> entry : curve.entrySet()) {
+			points.add(location, null, entry.getKey(), entry.getValue());
+		}
+	}
+
+	public static PlugProbabilityCurves createDefault(boolean interpolate) {
+		return new PlugProbabilityCurves(getDefaultPoints(), interpolate);
+	}
+
+	public static PlugProbabilityCurves read(URL curvesUrl, boolean interpolate) {
+		Points points = new Points();
+		Points defaultPoints = getDefaultPoints();
+		int lineNumber = 0;
+		try (BufferedReader reader = IOUtils.getBufferedReader(curvesUrl)) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] columns = line.split(";", -1);
+				if (columns.length != 4) {
+					throw new IllegalArgumentException("Expected location;vehicleSize;soc;probability in line "
+							+ lineNumber + " of " + curvesUrl + ": " + line);
+				}
+				String size = columns[1].trim();
+				points.add(parseLocation(columns[0].trim()), size.isEmpty() ? null : parseSize(size),
+						Double.parseDouble(columns[2].trim()), Double.parseDouble(columns[3].trim()));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (Location location : LOCATIONS) {
+			if (!points.contains(location)) {
+				log.info("No " + location.getName() + " plug probability curve in " + curvesUrl
+						+ ", the built-in curve is used");
+				points.defaultCurves.put(location, defaultPoints.defaultCurves.get(location));
+			}
+		}
+		log.info("Plug probability curves read from " + curvesUrl);
+		return new PlugProbabilityCurves(points, interpolate);
+	}
+
+	private static Location parseLocation(String name) {
+		for (Location location : LOCATIONS) {
+			if (location.getName().equals(name)) {
+				return location;
+			}
+		}
+		throw new IllegalArgumentException("Unknown charging location: " + name);
+	}
+
+	private static VehicleSize parseSize(String name) {
+		for (VehicleSize size : SIZES) {
+			if (size.getName().equals(name)) {
+				return size;
+			}
+		}
+		throw new IllegalArgumentException("Unknown vehicle size: " + name);
+	}
+
+	// [location][size][soc percent]
+	private final double[][][] tables;
+
+	public PlugProbabilityCurves(Points points, boolean interpolate) {
+		tables = new double[LOCATIONS.length][SIZES.length][];
+		for (Location location : LOCATIONS) {
+			for (VehicleSize size : SIZES) {
+				TreeMap<Double, Double> curve = points.get(location, size);
+				if (curve == null) {
+					throw new IllegalArgumentException(
+							"No " + location.getName() + " plug probability curve for " + size.getName() + " vehicles");
+				}
+				tables[location.ordinal()][size.ordinal()] = interpolate ?
+						compileInterpolated(curve) :
+						compileSteps(curve);
+			}
+		}
+	}
+
+	// the probability of the first point at or above the SoC, or of the last point
+	private static double[] compileSteps(TreeMap<Double, Double> curve) {
+		double[] table = new double[MAX_SOC + 1];
+		for (int soc = 0; soc <= MAX_SOC; soc++) {
+			Map.Entry<Double, Double> point = curve.ceilingEntry((double)soc);
+			table[soc] = (point != null ? point : curve.lastEntry()).getValue();
+		}
+		return table;
+	}
+
+	private static double[] compileInterpolated(TreeMap<Double, Double> curve) {
+		double[] table = new double[MAX_SOC + 1];
+		for (int soc = 0; soc <= MAX_SOC; soc++) {
+			Map.Entry<Double, Double> upper = curve.ceilingEntry((double)soc);
+			Map.Entry<Double, Double> lower = curve.floorEntry((double)soc);
+			if (upper == null) {
+				table[soc] = lower.getValue();
+			} else if (lower == null || upper.getKey().equals(lower.getKey())) {
+				table[soc] = upper.getValue();
+			} else {
+				double weight = (soc - lower.getKey()) / (upper.getKey() - lower.getKey());
+				table[soc] = lower.getValue() + weight * (upper.getValue() - lower.getValue());
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * @param socRate SoC [%] of the vehicle; rounded up to the next percent and clamped to [0, 100]
+	 * @return the plug-in probability [%]
+	 */
+	public double getProbability(Location location, VehicleSize size, double socRate) {
+		int soc = socRate >= MAX_SOC ? MAX_SOC : socRate > 0 ? (int)Math.ceil(socRate) : 0;
+		return tables[location.ordinal()][size.ordinal()][soc];
+	}
+
+	/**
+	 * @return a copy of the compiled table of a location and size, indexed by SoC [%]
+	 */
+	public double[] getTable(Location location, VehicleSize size) {
+		return tables[location.ordinal()][size.ordinal()].clone();
+	}
+}
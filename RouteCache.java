@@ -0,0 +1,318 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.contrib.ev.fleet.ElectricVehicle;
+import org.matsim.core.controler.ControlerListenerManager;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.util.TravelTime;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Size-bounded cache of en-route charging routes, shared by all routing threads. Routes are stored as templates keyed
+ * by (vehicle, from link, to link, departure time bin, SoC bucket) and looked up before the trip is routed, so a hit
+ * skips the base route, the consumption estimate, the charger selection and the charging legs. On a hit the template
+ * is copied and shifted to the actual departure time, so cached plan elements are never handed out.
+ * <p>
+ * The vehicle belongs to one person, so a template is always a route of the person that gets it, also with a
+ * person-specific (e.g. randomized) travel disutility, and it does not matter which routing thread created it. As
+ * long as the cache does not reach its maximum size, the reused routes do not depend on the order of the routing
+ * threads either. A hit assumes that the trip needs en-route charging again, as it did when the template was created.
+ * <p>
+ * The results depend on the travel time, so the cache is bound to a {@link TravelTime} and invalidated at the start of
+ * every iteration. With a travel time change threshold, a template instead records the links its network legs pass,
+ * with the times it enters them and the travel times it was routed with, and is only invalidated once the travel time
+ * of one of these links at its enter time differs by more than the threshold (relative) from the recorded one. Only
+ * the links of live templates are checked, in parallel.
+ */
+public final class RouteCache implements IterationStartsListener {
+	private static final Logger log = Logger.getLogger(RouteCache.class);
+
+	private static final Cache<TravelTime, RouteCache> CACHES = CacheBuilder.newBuilder().weakKeys().build();
+
+	/**
+	 * Returns the cache bound to the given travel time, creating it (and registering it for invalidation) on first
+	 * access.
+	 */
+	public static RouteCache getOrCreate(TravelTime travelTime, Network network, int timeBinSize, long maximumSize,
+			double travelTimeChangeThreshold, ControlerListenerManager controlerListenerManager) {
+		try {
+			return CACHES.get(travelTime, () -> {
+				RouteCache cache = travelTimeChangeThreshold > 0 ?
+						new RouteCache(timeBinSize, maximumSize, travelTime, network, travelTimeChangeThreshold) :
+						new RouteCache(timeBinSize, maximumSize);
+				controlerListenerManager.addControlerListener(cache);
+				return cache;
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public static final class Key {
+		private final int vehicleIndex;
+		private final int fromLinkIndex;
+		private final int toLinkIndex;
+		private final int timeBin;
+		private final int socBucket;
+
+		private Key(int vehicleIndex, int fromLinkIndex, int toLinkIndex, int timeBin, int socBucket) {
+			this.vehicleIndex = vehicleIndex;
+			this.fromLinkIndex = fromLinkIndex;
+			this.toLinkIndex = toLinkIndex;
+			this.timeBin = timeBin;
+			this.socBucket = socBucket;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key)o;
+			return vehicleIndex == key.vehicleIndex && fromLinkIndex == key.fromLinkIndex
+					&& toLinkIndex == key.toLinkIndex && timeBin == key.timeBin && socBucket == key.socBucket;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = vehicleIndex;
+			h = 31 * h + fromLinkIndex;
+			h = 31 * h + toLinkIndex;
+			h = 31 * h + timeBin;
+			return 31 * h + socBucket;
+		}
+	}
+
+	/**
+	 * Plan elements of a routing result, routed for the given departure time, together with the charge-up-to level the
+	 * routing set for the vehicle (NaN if the route has no charging stop), which is set again on a hit.
+	 */
+	public static final class Template {
+		private final List<PlanElement> planElements;
+		private final double departureTime;
+		private final double chargeUpTo;
+
+		// passed links with enter times and the travel times at creation, null without selective invalidation
+		private final Link[] links;
+		private final double[] enterTimes;
+		private final float[] travelTimes;
+
+		private Template(List<? extends PlanElement> planElements, double departureTime, double chargeUpTo,
+				@Nullable Network network, @Nullable TravelTime travelTime) {
+			this.planElements = copy(planElements, 0);
+			this.departureTime = departureTime;
+			this.chargeUpTo = chargeUpTo;
+			if (travelTime == null) {
+				this.links = null;
+				this.enterTimes = null;
+				this.travelTimes = null;
+				return;
+			}
+
+			List<Link> links = new ArrayList<>();
+			List<Double> enterTimes = new ArrayList<>();
+			for (PlanElement planElement : planElements) {
+				if (planElement instanceof Leg && ((Leg)planElement).getRoute() instanceof NetworkRoute) {
+					Leg leg = (Leg)planElement;
+					double time = leg.getDepartureTime();
+					NetworkRoute route = (NetworkRoute)leg.getRoute();
+					for (Id<Link> linkId : route.getLinkIds()) {
+						Link link = network.getLinks().get(linkId);
+						links.add(link);
+						enterTimes.add(time);
+						time += travelTime.getLinkTravelTime(link, time, null, null);
+					}
+					if (!route.getEndLinkId().equals(route.getStartLinkId())) {
+						links.add(network.getLinks().get(route.getEndLinkId()));
+						enterTimes.add(time);
+					}
+				}
+			}
+			this.links = links.toArray(new Link[0]);
+			this.enterTimes = enterTimes.stream().mapToDouble(Double::doubleValue).toArray();
+			this.travelTimes = new float[this.links.length];
+			for (int i = 0; i < this.links.length; i++) {
+				this.travelTimes[i] = (float)travelTime.getLinkTravelTime(this.links[i], this.enterTimes[i], null,
+						null);
+			}
+		}
+
+		private boolean isOutdated(TravelTime travelTime, double threshold) {
+			for (int i = 0; i < links.length; i++) {
+				double currentTravelTime = travelTime.getLinkTravelTime(links[i], enterTimes[i], null, null);
+				if (Math.abs(currentTravelTime - travelTimes[i]) > threshold * travelTimes[i]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public double getChargeUpTo() {
+			return chargeUpTo;
+		}
+
+		/**
+		 * @return a copy of the plan elements, with the legs shifted to the given departure time
+		 */
+		public List<PlanElement> instantiate(double departureTime) {
+			return copy(planElements, departureTime - this.departureTime);
+		}
+	}
+
+	private final int timeBinSize;
+	private final Cache<Key, Template> templates;
+	private CacheStats lastIterationStats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+	// selective invalidation, null if the cache is invalidated completely
+	@Nullable
+	private final WeakReference<TravelTime> travelTime;// the cache is the value of its travel time in CACHES
+	@Nullable
+	private final Network network;
+	private final double travelTimeChangeThreshold;
+
+	/**
+	 * Creates a cache that is invalidated completely at the start of every iteration.
+	 */
+	public RouteCache(int timeBinSize, long maximumSize) {
+		this.timeBinSize = timeBinSize;
+		this.templates = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+		this.travelTime = null;
+		this.network = null;
+		this.travelTimeChangeThreshold = 0;
+	}
+
+	/**
+	 * Creates a cache that keeps the templates whose links have kept their travel times (within the relative threshold)
+	 * since the templates were created.
+	 */
+	public RouteCache(int timeBinSize, long maximumSize, TravelTime travelTime, Network network,
+			double travelTimeChangeThreshold) {
+		this.timeBinSize = timeBinSize;
+		this.templates = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+		this.travelTime = new WeakReference<>(travelTime);
+		this.network = network;
+		this.travelTimeChangeThreshold = travelTimeChangeThreshold;
+	}
+
+	public Key createKey(Id<ElectricVehicle> vehicleId, Id<Link> fromLinkId, Id<Link> toLinkId, double departureTime,
+			int socBucket) {
+		return new Key(vehicleId.index(), fromLinkId.index(), toLinkId.index(), getTimeBin(departureTime), socBucket);
+	}
+
+	private int getTimeBin(double time) {
+		return (int)(time / timeBinSize);
+	}
+
+	/**
+	 * @return the template, or null if not cached
+	 */
+	public Template get(Key key) {
+		return templates.getIfPresent(key);
+	}
+
+	/**
+	 * Stores a copy of the plan elements.
+	 */
+	public void put(Key key, List<? extends PlanElement> planElements, double departureTime, double chargeUpTo) {
+		templates.put(key, new Template(planElements, departureTime, chargeUpTo, network,
+				travelTime == null ? null : travelTime.get()));
+	}
+
+	/**
+	 * @return the statistics accumulated since the cache was created
+	 */
+	public CacheStats getStats() {
+		return templates.stats();
+	}
+
+	public void invalidate() {
+		templates.invalidateAll();
+	}
+
+	@Override
+	public void notifyIterationStarts(IterationStartsEvent event) {
+		CacheStats totalStats = getStats();
+		CacheStats stats = totalStats.minus(lastIterationStats);
+		lastIterationStats = totalStats;
+		log.info("Route cache: " + stats.hitCount() + " hits, " + stats.missCount() + " misses (hit rate "
+				+ stats.hitRate() + "), " + stats.evictionCount() + " evictions, " + templates.size() + " entries");
+		if (stats.evictionCount() > 0) {
+			log.warn("Route cache has reached its maximum size, so which routes are reused depends on the order of the"
+					+ " routing threads. Increase the maximum size for reproducible results.");
+		}
+		TravelTime currentTravelTime = travelTime == null ? null : travelTime.get();
+		if (currentTravelTime == null) {
+			invalidate();
+			return;
+		}
+
+		long size = templates.size();
+		List<Key> outdatedKeys = templates.asMap()
+				.entrySet()
+				.parallelStream()
+				.filter(e -> e.getValue().links == null
+						|| e.getValue().isOutdated(currentTravelTime, travelTimeChangeThreshold))
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+		templates.invalidateAll(outdatedKeys);
+		log.info("Route cache: " + outdatedKeys.size() + " of " + size + " entries invalidated");
+	}
+
+	private static List<PlanElement> copy(List<? extends PlanElement> planElements, double timeShift) {
+		List<PlanElement> copy = new ArrayList<>(planElements.size());
+		for (PlanElement planElement : planElements) {
+			if (planElement instanceof Leg) {
+				Leg leg = (Leg)planElement;
+				Leg legCopy = PopulationUtils.createLeg(leg.getMode());
+				PopulationUtils.copyFromTo(leg, legCopy);
+				legCopy.setDepartureTime(leg.getDepartureTime() + timeShift);
+				copy.add(legCopy);
+			} else {
+				copy.add(PopulationUtils.createActivity((Activity)planElement));
+			}
+		}
+		return copy;
+	}
+}
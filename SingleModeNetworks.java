@@ -0,0 +1,264 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.algorithms.TransportModeNetworkFilter;
+import org.matsim.core.router.SingleModeNetworksCache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Single-mode networks filtered from the full network, computed once per mode. Each mode has its own future, so
+ * different modes are filtered in parallel and threads asking for a mode that is being filtered just wait for its
+ * result, without holding a monitor. The results are also put into MATSim's {@link SingleModeNetworksCache}, so other
+ * routing modules find them there.
+ * <p>
+ * Optionally, a filtered network is stored in a binary file together with a fingerprint of the full network, and read
+ * from it at the next start if the full network is unchanged. Only the structure, coordinates, link properties
+ * (length, free speed, capacity, lanes, allowed modes, type) and the capacity period are stored, not the custom
+ * attributes of nodes and links.
+ */
+public final class SingleModeNetworks {
+	private static final Logger log = Logger.getLogger(SingleModeNetworks.class);
+
+	private static final int FILE_MAGIC = 0x45564e57;// "EVNW"
+	private static final int FILE_VERSION = 2;
+
+	private static final Cache<Network, SingleModeNetworks> INSTANCES = CacheBuilder.newBuilder().weakKeys().build();
+
+	/**
+	 * Returns the network of the given mode, filtering the full network (or reading the filtered network from the
+	 * directory, if given) on first access.
+	 */
+	public static Network get(Network fullNetwork, SingleModeNetworksCache singleModeNetworksCache, String mode,
+			@Nullable String directory) {
+		Map<String, Network> cachedNetworks = singleModeNetworksCache.getSingleModeNetworksCache();
+		Network network;
+		synchronized (cachedNetworks) {
+			network = cachedNetworks.get(mode);
+		}
+		if (network != null) {
+			return network;
+		}
+
+		try {
+			network = INSTANCES.get(fullNetwork, SingleModeNetworks::new).get(fullNetwork, mode, directory);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		synchronized (cachedNetworks) {
+			Network cachedNetwork = cachedNetworks.putIfAbsent(mode, network);
+			return cachedNetwork != null ? cachedNetwork : network;
+		}
+	}
+
+	// the full network is not kept, it is the (weak) key of this instance
+	private final ConcurrentHashMap<String, FutureTask<Network>> networks = new ConcurrentHashMap<>();
+
+	private Network get(Network fullNetwork, String mode, @Nullable String directory) {
+		FutureTask<Network> task = networks.computeIfAbsent(mode,
+				m -> new FutureTask<>(() -> load(fullNetwork, m, directory)));
+		task.run();// no-op if already run (or running) by another thread
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static Network load(Network fullNetwork, String mode, @Nullable String directory) {
+		if (directory == null) {
+			return filter(fullNetwork, mode);
+		}
+
+		File file = new File(directory, "network_" + mode + ".bin");
+		long fingerprint = calcFingerprint(fullNetwork);
+		if (file.exists()) {
+			Network network = read(file, fingerprint);
+			if (network != null) {
+				return network;
+			}
+			log.warn("Filtered network in " + file + " belongs to another full network, filtering again");
+		}
+		Network network = filter(fullNetwork, mode);
+		write(network, file, fingerprint);
+		return network;
+	}
+
+	private static Network filter(Network fullNetwork, String mode) {
+		long t0 = System.currentTimeMillis();
+		Network network = NetworkUtils.createNetwork();
+		new TransportModeNetworkFilter(fullNetwork).filter(network, Collections.singleton(mode));
+		log.info("Network of mode " + mode + " filtered in " + (System.currentTimeMillis() - t0) + " ms: "
+				+ network.getNodes().size() + " nodes, " + network.getLinks().size() + " links");
+		return network;
+	}
+
+	// covers everything that is written to the file, so it changes whenever the stored network would change
+	static long calcFingerprint(Network network) {
+		long h = 31 * Double.hashCode(network.getCapacityPeriod()) + Double.hashCode(network.getEffectiveLaneWidth());
+		for (Node node : network.getNodes().values()) {
+			long nodeHash = node.getId().toString().hashCode();
+			nodeHash = 31 * nodeHash + Double.hashCode(node.getCoord().getX());
+			nodeHash = 31 * nodeHash + Double.hashCode(node.getCoord().getY());
+			h += nodeHash * 0xC2B2AE3D27D4EB4FL;// order independent
+		}
+		for (Link link : network.getLinks().values()) {
+			long linkHash = link.getId().toString().hashCode();
+			linkHash = 31 * linkHash + link.getFromNode().getId().toString().hashCode();
+			linkHash = 31 * linkHash + link.getToNode().getId().toString().hashCode();
+			linkHash = 31 * linkHash + link.getAllowedModes().hashCode();
+			linkHash = 31 * linkHash + Double.hashCode(link.getLength());
+			linkHash = 31 * linkHash + Double.hashCode(link.getFreespeed());
+			linkHash = 31 * linkHash + Double.hashCode(link.getCapacity());
+			linkHash = 31 * linkHash + Double.hashCode(link.getNumberOfLanes());
+			linkHash = 31 * linkHash + Objects.hashCode(NetworkUtils.getType(link));
+			h += linkHash * 0x9E3779B97F4A7C15L;// order independent
+		}
+		return h;
+	}
+
+	static void write(Network network, File file, long fingerprint) {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(fingerprint);
+			out.writeDouble(network.getCapacityPeriod());
+			out.writeDouble(network.getEffectiveLaneWidth());
+
+			Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+			out.writeInt(network.getNodes().size());
+			for (Node node : network.getNodes().values()) {
+				nodeIndices.put(node.getId(), nodeIndices.size());
+				out.writeUTF(node.getId().toString());
+				Coord coord = node.getCoord();
+				out.writeDouble(coord.getX());
+				out.writeDouble(coord.getY());
+			}
+
+			out.writeInt(network.getLinks().size());
+			for (Link link : network.getLinks().values()) {
+				out.writeUTF(link.getId().toString());
+				out.writeInt(nodeIndices.get(link.getFromNode().getId()));
+				out.writeInt(nodeIndices.get(link.getToNode().getId()));
+				out.writeDouble(link.getLength());
+				out.writeDouble(link.getFreespeed());
+				out.writeDouble(link.getCapacity());
+				out.writeDouble(link.getNumberOfLanes());
+				out.writeByte(link.getAllowedModes().size());
+				for (String mode : link.getAllowedModes()) {
+					out.writeUTF(mode);
+				}
+				String type = NetworkUtils.getType(link);
+				out.writeBoolean(type != null);
+				if (type != null) {
+					out.writeUTF(type);
+				}
+			}
+		} catch (IOException e) {
+			// the network is usable anyway, it just has to be filtered again at the next start
+			log.warn("Could not write the filtered network to " + file, e);
+			return;
+		}
+		log.info("Filtered network written to " + file);
+	}
+
+	/**
+	 * @return the network, or null if the file was written for another full network
+	 */
+	static Network read(File file, long fingerprint) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				log.warn(file + " is not a filtered network of version " + FILE_VERSION);
+				return null;
+			}
+			if (in.readLong() != fingerprint) {
+				return null;
+			}
+			Network network = NetworkUtils.createNetwork();
+			network.setCapacityPeriod(in.readDouble());
+			network.setEffectiveLaneWidth(in.readDouble());
+			NetworkFactory factory = network.getFactory();
+
+			Node[] nodes = new Node[in.readInt()];
+			for (int i = 0; i < nodes.length; i++) {
+				Id<Node> id = Id.createNodeId(in.readUTF());
+				nodes[i] = factory.createNode(id, new Coord(in.readDouble(), in.readDouble()));
+				network.addNode(nodes[i]);
+			}
+
+			int linkCount = in.readInt();
+			for (int i = 0; i < linkCount; i++) {
+				Id<Link> id = Id.createLinkId(in.readUTF());
+				Link link = factory.createLink(id, nodes[in.readInt()], nodes[in.readInt()]);
+				link.setLength(in.readDouble());
+				link.setFreespeed(in.readDouble());
+				link.setCapacity(in.readDouble());
+				link.setNumberOfLanes(in.readDouble());
+				Set<String> modes = new HashSet<>();
+				for (int m = in.readByte(); m > 0; m--) {
+					modes.add(in.readUTF());
+				}
+				link.setAllowedModes(modes);
+				if (in.readBoolean()) {
+					NetworkUtils.setType(link, in.readUTF());
+				}
+				network.addLink(link);
+			}
+			log.info("Filtered network read from " + file + ": " + nodes.length + " nodes, " + linkCount + " links");
+			return network;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * *********************************************************************** *
+ * project: org.matsim.*
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** *
+ */
+
+package org.matsim.contrib.ev.fleet;
+
+/**
+ * Size class of an electric vehicle, derived from its battery capacity.
+ */
+public enum VehicleSize {
+	SMALL("small"), MEDIUM("medium"), LARGE("large");
+
+	private final String name;
+
+	VehicleSize(String name) {
+		this.name = name;
+	}
+
+	public static VehicleSize of(double batteryCapacity) {
+		if (batteryCapacity == 40) {
+			return SMALL;
+		} else if (batteryCapacity == 50) {
+			return MEDIUM;
+		} else {
+			return LARGE;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,136 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.contrib.ev.EvUnits;
+import org.matsim.contrib.ev.fleet.ElectricVehicle;
+import org.matsim.contrib.ev.fleet.ElectricVehicleSpecification;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.router.SpeedyALTFactory;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Compares the time-dependent consumption estimate with the earlier estimate that evaluated all links at the departure
+ * time, on an {@link EvRoutingBenchmarkScenario} with morning and evening peaks (travel times in 15 min bins, up to
+ * twice the free-flow time). For each departure time, the home-work routes of all persons are estimated both
+ * ways, with and without the {@link LinkEnergyConsumptionCache}. Printed per departure time: the mean consumption of
+ * both estimates, the mean and maximum relative difference and the number of routes for which the number of
+ * en-route charging stops ({@code floor(consumption / initial SoC)}) differs.
+ * <p>
+ * Arguments (all optional): grid size (default 150), number of persons (default 2000).
+ */
+final class ConsumptionEstimateRegression {
+	private static final int TIME_BIN_SIZE = 900;
+	private static final double MAX_TIME = 30 * 3600;
+
+	public static void main(String[] args) {
+		int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 150;
+		int personCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		EvRoutingBenchmarkScenario scenario = new EvRoutingBenchmarkScenario(gridSize, 250, personCount, 500, 0.15,
+				4711);
+		TravelTime travelTime = ConsumptionEstimateRegression::getPeakTravelTime;
+
+		List<ElectricVehicleSpecification> vehicles = new ArrayList<>();
+		List<NetworkRoute> routes = new ArrayList<>();
+		LeastCostPathCalculator router = new SpeedyALTFactory().createPathCalculator(scenario.network,
+				new OnlyTimeDependentTravelDisutility(scenario.travelTime), scenario.travelTime);
+		for (Person person : scenario.persons) {
+			Plan plan = person.getSelectedPlan();
+			Link home = scenario.network.getLinks().get(((Activity)plan.getPlanElements().get(0)).getLinkId());
+			Link work = scenario.network.getLinks().get(((Activity)plan.getPlanElements().get(2)).getLinkId());
+			if (home == work) {
+				continue;
+			}
+			LeastCostPathCalculator.Path path = router.calcLeastCostPath(home.getToNode(), work.getFromNode(), 0,
+					person, null);
+			routes.add(RouteUtils.createLinkNetworkRouteImpl(home.getId(), NetworkUtils.getLinkIds(path.links),
+					work.getId()));
+			vehicles.add(scenario.fleetSpecification.getVehicleSpecifications()
+					.get(Id.create(person.getId(), ElectricVehicle.class)));
+		}
+
+		compare("without consumption cache", scenario, travelTime, vehicles, routes, false);
+		compare("with consumption cache", scenario, travelTime, vehicles, routes, true);
+	}
+
+	private static void compare(String title, EvRoutingBenchmarkScenario scenario, TravelTime travelTime,
+			List<ElectricVehicleSpecification> vehicles, List<NetworkRoute> routes, boolean useCache) {
+		EnergyConsumptionEstimator departureTimeEstimator = new EnergyConsumptionEstimator(scenario.network,
+				travelTime, scenario.driveConsumptionFactory, scenario.auxConsumptionFactory,
+				useCache ? new LinkEnergyConsumptionCache(TIME_BIN_SIZE, MAX_TIME) : null, true);
+		EnergyConsumptionEstimator timeDependentEstimator = new EnergyConsumptionEstimator(scenario.network,
+				travelTime, scenario.driveConsumptionFactory, scenario.auxConsumptionFactory,
+				useCache ? new LinkEnergyConsumptionCache(TIME_BIN_SIZE, MAX_TIME) : null);
+
+		System.out.println(title + " (" + routes.size() + " routes)");
+		System.out.println("departure;departureTimeEstimate_kWh;timeDependentEstimate_kWh;meanRelDiff_%;"
+				+ "maxRelDiff_%;changedStopCounts");
+		for (int departureTime = 5 * 3600; departureTime <= 20 * 3600; departureTime += 1800) {
+			double sumBefore = 0;
+			double sumAfter = 0;
+			double sumRelDiff = 0;
+			double maxRelDiff = 0;
+			int changedStopCounts = 0;
+			for (int i = 0; i < routes.size(); i++) {
+				ElectricVehicleSpecification ev = vehicles.get(i);
+				double before = departureTimeEstimator.estimate(ev, routes.get(i), departureTime);
+				double after = timeDependentEstimator.estimate(ev, routes.get(i), departureTime);
+				sumBefore += before;
+				sumAfter += after;
+				double relDiff = before == 0 ? 0 : Math.abs(after - before) / Math.abs(before);
+				sumRelDiff += relDiff;
+				maxRelDiff = Math.max(maxRelDiff, relDiff);
+				if (Math.floor(before / ev.getInitialSoc()) != Math.floor(after / ev.getInitialSoc())) {
+					changedStopCounts++;
+				}
+			}
+			System.out.println(String.format("%02d:%02d;%.3f;%.3f;%.2f;%.2f;%d", departureTime / 3600,
+					departureTime % 3600 / 60, EvUnits.J_to_kWh(sumBefore / routes.size()),
+					EvUnits.J_to_kWh(sumAfter / routes.size()), 100 * sumRelDiff / routes.size(), 100 * maxRelDiff,
+					changedStopCounts));
+		}
+		System.out.println();
+	}
+
+	// free-flow travel time scaled by peaks at 8:00 and 17:30, constant within 15 min bins
+	private static double getPeakTravelTime(Link link, double time, Person person,
+			Vehicle vehicle) {
+		double binStart = Math.floor(time / TIME_BIN_SIZE) * TIME_BIN_SIZE;
+		double factor = 1 + getPeak(binStart, 8 * 3600) + getPeak(binStart, 17.5 * 3600);
+		return link.getLength() / link.getFreespeed(time) * factor;
+	}
+
+	private static double getPeak(double time, double peakTime) {
+		double x = (time - peakTime) / 3600;
+		return Math.exp(-x * x);
+	}
+}
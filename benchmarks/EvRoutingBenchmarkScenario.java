@@ -0,0 +1,274 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.Plan;
+import org.matsim.api.core.v01.population.Population;
+import org.matsim.api.core.v01.population.PopulationFactory;
+import org.matsim.contrib.ev.EvConfigGroup;
+import org.matsim.contrib.ev.EvUnits;
+import org.matsim.contrib.ev.charging.ChargingPower;
+import org.matsim.contrib.ev.charging.FixedSpeedCharging;
+import org.matsim.contrib.ev.discharging.AuxEnergyConsumption;
+import org.matsim.contrib.ev.discharging.DriveEnergyConsumption;
+import org.matsim.contrib.ev.discharging.OhdeSlaskiDriveEnergyConsumption;
+import org.matsim.contrib.ev.fleet.ElectricFleetSpecification;
+import org.matsim.contrib.ev.fleet.ElectricFleetSpecificationImpl;
+import org.matsim.contrib.ev.fleet.ElectricVehicle;
+import org.matsim.contrib.ev.fleet.ImmutableElectricVehicleSpecification;
+import org.matsim.contrib.ev.fleet.MyElectricFleet;
+import org.matsim.contrib.ev.fleet.MyElectricFleets;
+import org.matsim.contrib.ev.infrastructure.Charger;
+import org.matsim.contrib.ev.infrastructure.ChargerSpecification;
+import org.matsim.contrib.ev.infrastructure.ChargingInfrastructureSpecification;
+import org.matsim.contrib.ev.infrastructure.ChargingInfrastructureSpecificationImpl;
+import org.matsim.contrib.ev.infrastructure.ImmutableChargerSpecification;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.config.groups.PlansCalcRouteConfigGroup.ModeRoutingParams;
+import org.matsim.core.router.DefaultRoutingModules;
+import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.SpeedyALTFactory;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.LeastCostPathCalculator;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Synthetic scenario for benchmarking the EV routing: a bidirectional grid network, a fleet of one EV per person, public
+ * chargers on random links, home/work chargers for a share of the persons and home-work-home plans. The grid is placed
+ * over the default charging zone, so trips both inside and outside of the zone are generated. Everything is derived
+ * from the seed, so runs with equal parameters route equal trips.
+ */
+final class EvRoutingBenchmarkScenario {
+	static final double GRID_ORIGIN_X = 716000;
+	static final double GRID_ORIGIN_Y = 6171000;
+
+	private static final double HOME_END_TIME = 7 * 3600;
+	private static final double WORK_END_TIME = 16 * 3600;
+
+	final Scenario scenario;
+	final Network network;
+	final ElectricFleetSpecification fleetSpecification;
+	final ChargingInfrastructureSpecification infrastructureSpecification;
+	final TravelTime travelTime = new FreeSpeedTravelTime();
+	final DriveEnergyConsumption.Factory driveConsumptionFactory = ev -> new OhdeSlaskiDriveEnergyConsumption();
+	final AuxEnergyConsumption.Factory auxConsumptionFactory = ev -> (beginTime, duration, linkId) -> 0;
+	final ChargingPower.Factory chargingPowerFactory = ev -> new FixedSpeedCharging(ev, 1);
+	final MyElectricFleet fleet;
+	final List<Person> persons = new ArrayList<>();
+
+	/**
+	 * @param gridSize     nodes per grid side
+	 * @param linkLength   distance between neighbouring nodes [m]
+	 * @param persons      persons (and EVs)
+	 * @param chargers     public chargers
+	 * @param initialSoc   initial SoC relative to the battery capacity; low values make en-route charging necessary
+	 */
+	EvRoutingBenchmarkScenario(int gridSize, double linkLength, int persons, int chargers, double initialSoc,
+			long seed) {
+		Random random = new Random(seed);
+		Config config = ConfigUtils.createConfig(new EvConfigGroup());
+		this.scenario = ScenarioUtils.createScenario(config);
+		this.network = scenario.getNetwork();
+		createGrid(gridSize, linkLength);
+
+		List<Link> links = new ArrayList<>(network.getLinks().values());
+		this.infrastructureSpecification = new ChargingInfrastructureSpecificationImpl();
+		for (int i = 0; i < chargers; i++) {
+			// ids shorter than 10 characters, otherwise they are treated as private chargers
+			addCharger(Id.create("c" + i, Charger.class), links.get(random.nextInt(links.size())),
+					EvUnits.kW_to_W(random.nextBoolean() ? 22 : 50), 2);
+		}
+
+		this.fleetSpecification = new ElectricFleetSpecificationImpl();
+		PopulationFactory populationFactory = scenario.getPopulation().getFactory();
+		for (int i = 0; i < persons; i++) {
+			Person person = createPerson(populationFactory, Id.createPersonId(String.format("person%06d", i)),
+					links.get(random.nextInt(links.size())), links.get(random.nextInt(links.size())));
+			scenario.getPopulation().addPerson(person);
+			this.persons.add(person);
+
+			double capacity = EvUnits.kWh_to_J(random.nextBoolean() ? 40 : 60);
+			fleetSpecification.addVehicleSpecification(ImmutableElectricVehicleSpecification.newBuilder()
+					.id(Id.create(person.getId(), ElectricVehicle.class))
+					.vehicleType("benchmark")
+					.chargerTypes(ImmutableList.of(ChargerSpecification.DEFAULT_CHARGER_TYPE))
+					.batteryCapacity(capacity)
+					.initialSoc(capacity * initialSoc)
+					.build());
+
+			if (random.nextInt(100) < 20) {
+				addCharger(Id.create(person.getId() + "home", Charger.class), getLink(person, 0), EvUnits.kW_to_W(11),
+						1);
+			}
+			if (random.nextInt(100) < 10) {
+				addCharger(Id.create(person.getId() + "work", Charger.class), getLink(person, 2), EvUnits.kW_to_W(11),
+						1);
+			}
+		}
+
+		this.fleet = MyElectricFleets.createDefaultFleet(fleetSpecification, driveConsumptionFactory,
+				auxConsumptionFactory, chargingPowerFactory);
+	}
+
+	private void createGrid(int gridSize, double linkLength) {
+		NetworkFactory factory = network.getFactory();
+		Node[][] nodes = new Node[gridSize][gridSize];
+		for (int x = 0; x < gridSize; x++) {
+			for (int y = 0; y < gridSize; y++) {
+				nodes[x][y] = factory.createNode(Id.createNodeId(x + "_" + y),
+						new Coord(GRID_ORIGIN_X + x * linkLength, GRID_ORIGIN_Y + y * linkLength));
+				network.addNode(nodes[x][y]);
+			}
+		}
+		for (int x = 0; x < gridSize; x++) {
+			for (int y = 0; y < gridSize; y++) {
+				if (x + 1 < gridSize) {
+					addLinks(nodes[x][y], nodes[x + 1][y], linkLength);
+				}
+				if (y + 1 < gridSize) {
+					addLinks(nodes[x][y], nodes[x][y + 1], linkLength);
+				}
+			}
+		}
+	}
+
+	private void addLinks(Node a, Node b, double length) {
+		addLink(a, b, length);
+		addLink(b, a, length);
+	}
+
+	private void addLink(Node from, Node to, double length) {
+		Link link = network.getFactory()
+				.createLink(Id.createLinkId(from.getId() + "-" + to.getId()), from, to);
+		link.setLength(length);
+		link.setFreespeed(13.89);
+		link.setCapacity(1000);
+		link.setNumberOfLanes(1);
+		network.addLink(link);
+	}
+
+	private void addCharger(Id<Charger> id, Link link, double plugPower, int plugCount) {
+		infrastructureSpecification.addChargerSpecification(ImmutableChargerSpecification.newBuilder()
+				.id(id)
+				.linkId(link.getId())
+				.chargerType(ChargerSpecification.DEFAULT_CHARGER_TYPE)
+				.plugPower(plugPower)
+				.plugCount(plugCount)
+				.build());
+	}
+
+	private Person createPerson(PopulationFactory factory, Id<Person> id, Link homeLink, Link workLink) {
+		Person person = factory.createPerson(id);
+		Plan plan = factory.createPlan();
+		Activity home = factory.createActivityFromLinkId("home", homeLink.getId());
+		home.setCoord(homeLink.getCoord());
+		home.setEndTime(HOME_END_TIME);
+		plan.addActivity(home);
+		plan.addLeg(factory.createLeg(TransportMode.car));
+		Activity work = factory.createActivityFromLinkId("work", workLink.getId());
+		work.setCoord(workLink.getCoord());
+		work.setEndTime(WORK_END_TIME);
+		plan.addActivity(work);
+		plan.addLeg(factory.createLeg(TransportMode.car));
+		Activity homeAgain = factory.createActivityFromLinkId("home", homeLink.getId());
+		homeAgain.setCoord(homeLink.getCoord());
+		plan.addActivity(homeAgain);
+		person.addPlan(plan);
+		person.setSelectedPlan(plan);
+		return person;
+	}
+
+	private Link getLink(Person person, int planElement) {
+		return network.getLinks()
+				.get(((Activity)person.getSelectedPlan().getPlanElements().get(planElement)).getLinkId());
+	}
+
+	/**
+	 * Creates a routing module wired like {@link MyEvNetworkRoutingProvider} does, with all optional components
+	 * enabled as configured in the given evRouting group.
+	 */
+	MyEvNetworkRoutingModule createRoutingModule(MyEvRoutingConfigGroup evRoutingConfig) {
+		Config config = scenario.getConfig();
+		EvConfigGroup evConfig = EvConfigGroup.get(config);
+		LinkEnergyConsumptionCache consumptionCache = evRoutingConfig.getConsumptionCacheTimeBinSize() > 0 ?
+				new LinkEnergyConsumptionCache(evRoutingConfig.getConsumptionCacheTimeBinSize(), 30 * 3600) :
+				null;
+		ChargerSpatialIndex chargerIndex = ChargerSpatialIndex.getOrCreate(infrastructureSpecification, network);
+		ChargerCandidateSearch chargerSearch = evRoutingConfig.getChargerSearchMaxTravelTime() > 0 ?
+				new ChargerCandidateSearch(travelTime, chargerIndex, evRoutingConfig.getChargerSearchMaxTravelTime()) :
+				null;
+		EnergyConstrainedPathCalculator constrainedPathCalculator = null;
+		if (evRoutingConfig.getEnRouteChargingAlgorithm()
+				== MyEvRoutingConfigGroup.EnRouteChargingAlgorithm.ENERGY_CONSTRAINED) {
+			constrainedPathCalculator = new EnergyConstrainedPathCalculator(travelTime,
+					new EnergyConsumptionEstimator(network, travelTime, driveConsumptionFactory, auxConsumptionFactory,
+							consumptionCache), chargerIndex, evConfig.getMinimumChargeTime(),
+					evRoutingConfig.getSocBuckets(), evRoutingConfig.getMaxSettledStates());
+		}
+		ChargingZones chargingZones = ChargingZones.getOrCreate(network, null, null,
+				evRoutingConfig.getChargingZoneGridCellSize());
+		RouteCache routeCache = evRoutingConfig.getRouteCacheMaximumSize() > 0 ?
+				new RouteCache(evRoutingConfig.getRouteCacheTimeBinSize(), evRoutingConfig.getRouteCacheMaximumSize()) :
+				null;
+
+		LeastCostPathCalculator routeAlgo = new SpeedyALTFactory().createPathCalculator(network,
+				new OnlyTimeDependentTravelDisutility(travelTime), travelTime);
+		RoutingModule delegate = DefaultRoutingModules.createPureNetworkRouter(TransportMode.car,
+				scenario.getPopulation().getFactory(), network, routeAlgo);
+		RoutingModule walkRouter = createWalkRouter(TransportMode.walk, 1.0);
+		RoutingModule fastWalkRouter = createWalkRouter("fast_walk", 1.5);
+
+		return new MyEvNetworkRoutingModule(TransportMode.car, network, delegate, fleetSpecification,
+				infrastructureSpecification, travelTime, driveConsumptionFactory, auxConsumptionFactory, evConfig,
+				walkRouter, fastWalkRouter, chargerIndex, chargerSearch, fleet, consumptionCache,
+				constrainedPathCalculator, chargingZones, routeCache, evRoutingConfig.getSocBuckets(), null,
+				new EvRoutingRandom(config.global().getRandomSeed()), null,
+				PlugProbabilityCurves.getOrCreate(evRoutingConfig, config.getContext()), null, null);
+	}
+
+	private RoutingModule createWalkRouter(String mode, double speed) {
+		ModeRoutingParams params = new ModeRoutingParams(mode);
+		params.setTeleportedModeSpeed(speed);
+		params.setBeelineDistanceFactor(1.3);
+		return DefaultRoutingModules.createTeleportationRouter(mode, scenario, params);
+	}
+
+	Population getPopulation() {
+		return scenario.getPopulation();
+	}
+}
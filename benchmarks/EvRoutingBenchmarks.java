@@ -0,0 +1,267 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2021 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.contrib.ev.routing;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.contrib.ev.fleet.ElectricVehicle;
+import org.matsim.contrib.ev.fleet.ElectricVehicleSpecification;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.TripStructureUtils;
+import org.matsim.core.router.TripStructureUtils.Trip;
+import org.matsim.facilities.FacilitiesUtils;
+import org.matsim.facilities.Facility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the EV routing hot path on {@link EvRoutingBenchmarkScenario}s:
+ * <ul>
+ * <li>{@code routeTrip}: latency distribution of routing single trips (sample mode) and trips per second</li>
+ * <li>{@code routePopulation}: routing all trips of the population once</li>
+ * <li>{@code estimateConsumption}, {@code findNearestChargers}, {@code checkChargingZone}: the components of a trip</li>
+ * </ul>
+ * {@link #main(String[])} runs all benchmarks with the GC profiler (allocation rate per operation) and writes the
+ * results as JSON to {@code benchmarks/results/<timestamp>.json}, so that runs before and after a change can be
+ * compared side by side (e.g. with the JMH visualizer). Additional JMH command line options (e.g. {@code -p
+ * gridSize=200} or a benchmark name regex) are passed through.
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class EvRoutingBenchmarks {
+
+	@State(Scope.Benchmark)
+	public static class ScenarioState {
+		@Param({ "50", "150" })
+		int gridSize;
+
+		@Param({ "250" })
+		double linkLength;
+
+		@Param({ "10000" })
+		int persons;
+
+		@Param({ "500" })
+		int chargers;
+
+		// high: mostly destination charging decisions, low: mostly en-route charging
+		@Param({ "0.8", "0.15" })
+		double initialSoc;
+
+		EvRoutingBenchmarkScenario scenario;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			scenario = new EvRoutingBenchmarkScenario(gridSize, linkLength, persons, chargers, initialSoc, 4711);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class RoutingState {
+		@Param({ "STAGED", "ENERGY_CONSTRAINED" })
+		MyEvRoutingConfigGroup.EnRouteChargingAlgorithm algorithm;
+
+		@Param({ "0", "900" })
+		int consumptionCacheTimeBinSize;
+
+		MyEvNetworkRoutingModule routingModule;
+		List<Person> persons;
+		int nextPerson;
+
+		@Setup(Level.Trial)
+		public void setup(ScenarioState scenarioState) {
+			MyEvRoutingConfigGroup evRoutingConfig = new MyEvRoutingConfigGroup();
+			evRoutingConfig.setEnRouteChargingAlgorithm(algorithm);
+			evRoutingConfig.setConsumptionCacheTimeBinSize(consumptionCacheTimeBinSize);
+			routingModule = scenarioState.scenario.createRoutingModule(evRoutingConfig);
+			persons = scenarioState.scenario.persons;
+		}
+
+		Person nextPerson() {
+			Person person = persons.get(nextPerson);
+			nextPerson = (nextPerson + 1) % persons.size();
+			return person;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ComponentState {
+		EnergyConsumptionEstimator estimator;
+		EnergyConsumptionEstimator departureTimeEstimator;
+		ChargerSpatialIndex chargerIndex;
+		ChargerSpatialIndex.Neighbours neighbours = new ChargerSpatialIndex.Neighbours(2);
+		ChargingZones chargingZones;
+		ElectricVehicleSpecification[] vehicles;
+		NetworkRoute[] routes;
+		Activity[] destinations;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setup(ScenarioState scenarioState) {
+			EvRoutingBenchmarkScenario scenario = scenarioState.scenario;
+			MyEvRoutingConfigGroup evRoutingConfig = new MyEvRoutingConfigGroup();
+			estimator = new EnergyConsumptionEstimator(scenario.network, scenario.travelTime,
+					scenario.driveConsumptionFactory, scenario.auxConsumptionFactory, null);
+			departureTimeEstimator = new EnergyConsumptionEstimator(scenario.network, scenario.travelTime,
+					scenario.driveConsumptionFactory, scenario.auxConsumptionFactory, null, true);
+			chargerIndex = ChargerSpatialIndex.getOrCreate(scenario.infrastructureSpecification, scenario.network);
+			chargingZones = ChargingZones.getOrCreate(scenario.network, null, null,
+					evRoutingConfig.getChargingZoneGridCellSize());
+
+			// network routes of the first trips (first network leg if the trip is staged), routed once
+			MyEvNetworkRoutingModule routingModule = scenario.createRoutingModule(evRoutingConfig);
+			int size = scenario.persons.size();
+			vehicles = new ElectricVehicleSpecification[size];
+			routes = new NetworkRoute[size];
+			destinations = new Activity[size];
+			for (int i = 0; i < size; i++) {
+				Person person = scenario.persons.get(i);
+				Trip trip = TripStructureUtils.getTrips(person.getSelectedPlan()).get(0);
+				vehicles[i] = scenario.fleetSpecification.getVehicleSpecifications()
+						.get(Id.create(person.getId(), ElectricVehicle.class));
+				destinations[i] = trip.getDestinationActivity();
+				for (PlanElement planElement : calcTripRoute(routingModule, person, trip)) {
+					if (planElement instanceof Leg && ((Leg)planElement).getRoute() instanceof NetworkRoute) {
+						routes[i] = (NetworkRoute)((Leg)planElement).getRoute();
+						break;
+					}
+				}
+			}
+		}
+
+		int next() {
+			int i = next;
+			next = (next + 1) % routes.length;
+			return i;
+		}
+	}
+
+	private static List<? extends PlanElement> calcTripRoute(MyEvNetworkRoutingModule routingModule, Person person,
+			Trip trip) {
+		Activity origin = trip.getOriginActivity();
+		Facility fromFacility = FacilitiesUtils.toFacility(origin, null);
+		Facility toFacility = FacilitiesUtils.toFacility(trip.getDestinationActivity(), null);
+		return routingModule.calcRoute(fromFacility, toFacility, origin.getEndTime().seconds(), person);
+	}
+
+	/**
+	 * Routes all trips of the next person, in plan order (as the plan router does).
+	 */
+	private static void routePlan(MyEvNetworkRoutingModule routingModule, Person person, Blackhole blackhole) {
+		for (Trip trip : TripStructureUtils.getTrips(person.getSelectedPlan())) {
+			blackhole.consume(calcTripRoute(routingModule, person, trip));
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode({ Mode.SampleTime, Mode.Throughput })
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void routeTrip(RoutingState state, Blackhole blackhole) {
+		routePlan(state.routingModule, state.nextPerson(), blackhole);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 5, batchSize = 1)
+	public void routePopulation(RoutingState state, Blackhole blackhole) {
+		for (Person person : state.persons) {
+			routePlan(state.routingModule, person, blackhole);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public double estimateConsumption(ComponentState state) {
+		int i = state.next();
+		return state.estimator.estimate(state.vehicles[i], state.routes[i], 7 * 3600);
+	}
+
+	/**
+	 * The earlier estimate (all links at the departure time), as a baseline for {@link #estimateConsumption}.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public double estimateConsumptionAtDepartureTime(ComponentState state) {
+		int i = state.next();
+		return state.departureTimeEstimator.estimate(state.vehicles[i], state.routes[i], 7 * 3600);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int findNearestChargers(ComponentState state) {
+		Coord coord = state.destinations[state.next()].getCoord();
+		state.chargerIndex.findNearestPublicChargers(coord, state.neighbours);
+		return state.neighbours.size();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public boolean checkChargingZone(ComponentState state) {
+		return state.chargingZones.isInside(state.destinations[state.next()]);
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		File resultDir = new File("benchmarks/results");
+		resultDir.mkdirs();
+		String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+		Options options = new OptionsBuilder().parent(new CommandLineOptions(args))
+				.include(EvRoutingBenchmarks.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(new File(resultDir, timestamp + ".json").getPath())
+				.build();
+		new Runner(options).run();
+	}
+}